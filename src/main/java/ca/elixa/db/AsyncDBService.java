@@ -0,0 +1,445 @@
+package ca.elixa.db;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.function.Function;
+
+import ca.elixa.iris.Iris;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.reactivestreams.client.FindPublisher;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * The non-blocking counterpart to {@link DBService}, built on the reactive streams driver.
+ * Nothing here parks a thread while waiting on MongoDB, so a single event loop can keep thousands of operations in flight.
+ *
+ * Every method returns a Vert.x {@link Future}; use toCompletionStage() if you'd rather have a CompletionStage.
+ * If a method is called from a Vert.x context, its future is completed back on that context.
+ *
+ * Entities are built against the given DBService, so lazy lookups on them (getEntityFromKeyValue, etc.) are blocking.
+ * Transactions and the identity map aren't supported here. Writes still invalidate the DBService's shared cache.
+ *
+ * @author Evan
+ *
+ */
+public class AsyncDBService {
+	protected final DBService sync;
+	protected final MongoDatabase db;
+
+	/**
+	 * @param sync - the blocking service we share an entity factory and cache with
+	 * @param client - a reactive streams client pointed at the same deployment as sync
+	 */
+	public AsyncDBService(DBService sync, MongoClient client) {
+		this.sync = sync;
+		db = client.getDatabase(sync.getDBName());
+	}
+
+	/**
+	 * Fetch a single entity from a key.
+	 * @param key
+	 * @return the entity, or null if it doesn't exist
+	 */
+	public <T extends Entity> Future<T> getEntity(Key key) {
+		Publisher<Document> find = db.getCollection(key.getType()).find(BsonService.getFilterForId(key.getId())).first();
+
+		return collect(find).map(docs -> {
+			if(docs.isEmpty())
+				return null;
+
+			return sync.entityService.buildEntity(sync, key.getType(), docs.get(0));
+		});
+	}
+
+	/**
+	 * Fetch a list of entities from a list of keys. Every collection is queried at the same time.
+	 *
+	 * All of these entities will not *necessarily* be the same type. You will need to cast to the appropriate type.
+	 * @param keys
+	 * @return
+	 */
+	public <T extends Entity> Future<List<T>> getEntities(Iterable<Key> keys) {
+		List<Future<List<T>>> pending = new ArrayList<>();
+
+		for(Entry<String, List<Key>> entry : sortKeysByType(keys).entrySet()) {
+			String type = entry.getKey();
+
+			Publisher<Document> find = db.getCollection(type).find(BsonService.getFilterForIds(entry.getValue()));
+
+			pending.add(collect(find).map(docs -> build(type, docs)));
+		}
+
+		return CompositeFuture.all(new ArrayList<>(pending)).map(done -> {
+			List<T> result = new ArrayList<>();
+
+			for(Future<List<T>> f : pending)
+				result.addAll(f.result());
+
+			return result;
+		});
+	}
+
+	/**
+	 * Save a single entity. Like DBService, an entity that can't be saved (a projected one, without partial updates)
+	 * is skipped with a warning.
+	 * @param ent
+	 * @return
+	 */
+	public Future<Void> put(Entity ent) {
+		return put(List.of(ent));
+	}
+
+	/**
+	 * Save a list of entities, with one ordered bulkWrite per collection. The collections are written at the same time.
+	 * Entities are saved the same way DBService saves them; see {@link DBService#setPartialUpdates(boolean)}.
+	 * Entities that can't be saved (projected ones, without partial updates) are skipped with a warning, same as DBService.put.
+	 * @param ents
+	 * @return
+	 */
+	public <T extends Entity> Future<Void> put(Iterable<T> ents) {
+		Map<String, List<T>> sorted = new HashMap<>();
+
+		for(T ent : ents) {
+			if(!sync.canSave(ent)) {
+				Iris.warning("Attempted to save projected entity of key " + ent.getKey());
+				continue;
+			}
+
+			sorted.computeIfAbsent(ent.getType(), k -> new ArrayList<>()).add(ent);
+		}
+
+		List<Future<Void>> pending = new ArrayList<>();
+
+		for(Entry<String, List<T>> entry : sorted.entrySet()) {
+			MongoCollection<Document> col = db.getCollection(entry.getKey());
+			List<WriteModel<Document>> models = new ArrayList<>();
+			List<T> sent = new ArrayList<>();
+
+			for(T ent : entry.getValue()) {
+				WriteModel<Document> model = sync.toWriteModel(ent);
+
+				//nothing changed
+				if(model == null)
+					continue;
+
+				if(DBService.sendsAlone(ent)) {
+					pending.add(first(col.bulkWrite(List.of(model))).compose(result -> {
+						VersionConflictException conflict = sync.checkMatched(ent, result.getMatchedCount());
+
+						if(conflict != null)
+							return Future.failedFuture(conflict);
+
+						afterPut(ent);
+						return Future.succeededFuture();
+					}));
+					continue;
+				}
+
+				models.add(model);
+				sent.add(ent);
+			}
+
+			if(models.isEmpty())
+				continue;
+
+			Publisher<?> write = col.bulkWrite(models, new BulkWriteOptions().ordered(true));
+
+			pending.add(collect(write).map(done -> {
+				for(T ent : sent)
+					afterPut(ent);
+				return null;
+			}));
+		}
+
+		return CompositeFuture.all(new ArrayList<>(pending)).mapEmpty();
+	}
+
+	/**
+	 * Delete an entity based on its key.
+	 * @param key
+	 * @return the number of documents deleted
+	 */
+	public Future<Long> delete(Key key) {
+		Publisher<DeleteResult> delete = db.getCollection(key.getType()).deleteOne(BsonService.getFilterForId(key.getId()));
+
+		return first(delete).map(result -> {
+			afterDelete(key);
+			return result.getDeletedCount();
+		});
+	}
+
+	/**
+	 * Delete a collection of entities by their key, with one deleteMany per collection.
+	 * @param keys
+	 * @return the number of documents deleted, per type
+	 */
+	public Future<Map<String, Long>> delete(Iterable<Key> keys) {
+		Map<String, Future<Long>> pending = new HashMap<>();
+
+		for(Entry<String, List<Key>> entry : sortKeysByType(keys).entrySet()) {
+			List<Key> batch = entry.getValue();
+
+			Publisher<DeleteResult> delete = db.getCollection(entry.getKey()).deleteMany(BsonService.getFilterForIds(batch));
+
+			pending.put(entry.getKey(), first(delete).map(result -> {
+				for(Key key : batch)
+					afterDelete(key);
+				return result.getDeletedCount();
+			}));
+		}
+
+		return CompositeFuture.all(new ArrayList<>(pending.values())).map(done -> {
+			Map<String, Long> result = new HashMap<>();
+
+			for(Entry<String, Future<Long>> entry : pending.entrySet())
+				result.put(entry.getKey(), entry.getValue().result());
+
+			return result;
+		});
+	}
+
+	/**
+	 * Run a query. Sorts, limits, skips and keyset positions are all respected.
+	 * @param q
+	 * @return
+	 */
+	public <T extends Entity> Future<List<T>> runEntityQuery(Query q) {
+		return collect(find(q)).map(docs -> build(q.getType(), docs, q.projections));
+	}
+
+	/**
+	 * The default number of documents a stream holds ahead of its consumer, when the query doesn't set a batch size.
+	 */
+	public static final int DEFAULT_STREAM_PREFETCH = 128;
+
+	/**
+	 * Run a query as a backpressured ReadStream of entities. Nothing is loaded until a handler is set, and documents are
+	 * only pulled from the cursor as the consumer asks for them. See {@link QueryReadStream}
+	 * @param q
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Entity> QueryReadStream<T> streamEntityQuery(Query q) {
+		return streamQuery(q, ent -> (T) ent);
+	}
+
+	/**
+	 * Run a query as a backpressured ReadStream of JsonObjects, one per matched document.
+	 * @param q
+	 * @return
+	 */
+	public QueryReadStream<JsonObject> streamJsonQuery(Query q) {
+		return stream(q, BsonService::docToJson);
+	}
+
+	/**
+	 * Run a query as a backpressured ReadStream, turning each entity into something else on the way out.
+	 * For example, mapping each entity to a Buffer lets the stream be piped straight into an HttpServerResponse.
+	 * @param q
+	 * @param mapper - applied to every entity as it is emitted
+	 * @return
+	 */
+	public <T extends Entity, R> QueryReadStream<R> streamQuery(Query q, Function<T, R> mapper) {
+		Set<String> projections = q.projections.isEmpty() ? null : q.projections;
+
+		return stream(q, doc -> mapper.apply(sync.entityService.buildEntity(sync, q.getType(), doc, projections)));
+	}
+
+	private <R> QueryReadStream<R> stream(Query q, Function<Document, R> mapper) {
+		int prefetch = q.getBatchSize() > 0 ? q.getBatchSize() : DEFAULT_STREAM_PREFETCH;
+
+		FindPublisher<Document> find = find(q).batchSize(prefetch);
+
+		return new QueryReadStream<>(find, mapper, Vertx.currentContext(), prefetch);
+	}
+
+	public Future<Long> runCount(Query q) {
+		Bson filters = BsonService.generateQueryFilter(q);
+
+		return first(db.getCollection(q.getType()).countDocuments(filters));
+	}
+
+	/**
+	 * Apply a query's updates to every entity it matches.
+	 * @param q
+	 * @return the number of documents modified
+	 */
+	public Future<Long> runUpdate(Query q) {
+		Bson filters = BsonService.generateQueryFilter(q);
+		Bson updates = sync.withVersionBump(q.getType(), BsonService.generateUpdates(q.updates));
+
+		return first(db.getCollection(q.getType()).updateMany(filters, updates)).map(result -> {
+			invalidateType(q.getType());
+			return result.getModifiedCount();
+		});
+	}
+
+	/**
+	 * Delete every entity a query matches.
+	 * @param q
+	 * @return the number of documents deleted
+	 */
+	public Future<Long> runDeleteQuery(Query q) {
+		Bson filters = BsonService.generateQueryFilter(q);
+
+		return first(db.getCollection(q.getType()).deleteMany(filters)).map(result -> {
+			invalidateType(q.getType());
+			return result.getDeletedCount();
+		});
+	}
+
+	/**
+	 * Turn a query into a find, including its sort, keyset position, skip, limit and batch size.
+	 * @param q
+	 * @return
+	 */
+	protected FindPublisher<Document> find(Query q) {
+		MongoCollection<Document> col = db.getCollection(q.getType());
+
+		FindPublisher<Document> find = col.find(BsonService.generateQueryFilter(q))
+				.projection(sync.projectionFor(q.getType(), q.projections));
+
+		Bson sort = BsonService.generateSort(q.sorts);
+		if(sort != null)
+			find.sort(sort);
+
+		if(q.getSkip() > 0)
+			find.skip(q.getSkip());
+
+		if(q.getLimit() > 0)
+			find.limit(q.getLimit());
+
+		if(q.getBatchSize() > 0)
+			find.batchSize(q.getBatchSize());
+
+		return find;
+	}
+
+	private <T extends Entity> List<T> build(String type, List<Document> docs) {
+		return build(type, docs, null);
+	}
+
+	private <T extends Entity> List<T> build(String type, List<Document> docs, Set<String> projections) {
+		if(projections != null && projections.isEmpty())
+			projections = null;
+
+		List<T> result = new ArrayList<>(docs.size());
+
+		for(Document doc : docs)
+			result.add(sync.entityService.buildEntity(sync, type, doc, projections));
+
+		return result;
+	}
+
+	private void afterPut(Entity ent) {
+		if(ent.isVersioned())
+			ent.setVersion(ent.isNew() ? 1 : ent.getVersion() + 1);
+
+		ent.markSaved();
+
+		EntityCache cache = sync.getEntityCache();
+		if(cache != null)
+			cache.invalidate(ent.getKey());
+
+		//it may have just been inserted
+		MissingKeyCache missingKeys = sync.getMissingKeyCache();
+		if(missingKeys != null)
+			missingKeys.invalidate(ent.getKey());
+	}
+
+	private void afterDelete(Key key) {
+		EntityCache cache = sync.getEntityCache();
+		if(cache != null)
+			cache.invalidate(key);
+	}
+
+	private void invalidateType(String type) {
+		EntityCache cache = sync.getEntityCache();
+		if(cache != null)
+			cache.invalidateType(type);
+	}
+
+	private Map<String, List<Key>> sortKeysByType(Iterable<Key> keys) {
+		Map<String, List<Key>> result = new HashMap<>();
+
+		for(Key key : keys) {
+			if(key == null)
+				continue;
+
+			result.computeIfAbsent(key.getType(), k -> new ArrayList<>()).add(key);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Subscribe to a publisher and gather everything it emits.
+	 * @param publisher
+	 * @return a future completed with every item, on the caller's Vert.x context if there is one
+	 */
+	protected static <R> Future<List<R>> collect(Publisher<R> publisher) {
+		Context context = Vertx.currentContext();
+		Promise<List<R>> promise = Promise.promise();
+
+		publisher.subscribe(new Subscriber<R>() {
+			private final List<R> result = new ArrayList<>();
+
+			@Override
+			public void onSubscribe(Subscription s) {
+				s.request(Long.MAX_VALUE);
+			}
+
+			@Override
+			public void onNext(R item) {
+				result.add(item);
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				complete(context, () -> promise.tryFail(t));
+			}
+
+			@Override
+			public void onComplete() {
+				complete(context, () -> promise.tryComplete(result));
+			}
+		});
+
+		return promise.future();
+	}
+
+	/**
+	 * Subscribe to a publisher that emits (at most) one item.
+	 * @param publisher
+	 * @return a future completed with the item, or null if there wasn't one
+	 */
+	protected static <R> Future<R> first(Publisher<R> publisher) {
+		return collect(publisher).map(list -> list.isEmpty() ? null : list.get(0));
+	}
+
+	private static void complete(Context context, Runnable completion) {
+		if(context == null)
+			completion.run();
+		else
+			context.runOnContext(v -> completion.run());
+	}
+}
@@ -0,0 +1,78 @@
+package ca.elixa.db;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.conversions.Bson;
+
+/**
+ * One run of a {@link PreparedQuery}: the prepared plan plus a value for each of its parameters.
+ * Run it through the same DBService methods as a {@link Query}.
+ *
+ * This is NOT ThreadSafe. Bind once per run, or per thread.
+ *
+ * @author Evan
+ *
+ */
+public final class BoundQuery {
+
+	private final PreparedQuery prepared;
+	private final Object[] values;
+	private final boolean[] bound;
+
+	protected BoundQuery(PreparedQuery prepared) {
+		this.prepared = prepared;
+		this.values = new Object[prepared.paramCount()];
+		this.bound = new boolean[values.length];
+	}
+
+	/**
+	 * Give a parameter its value for this run. Keys, entities, arrays, lists and maps are converted the same way
+	 * as in {@link Query#addFilter(String, Object)}.
+	 * @param param - the name given to {@link Query#param(String)}
+	 * @param value
+	 * @return itself
+	 */
+	public BoundQuery set(String param, Object value) {
+		int index = prepared.indexOf(param);
+
+		//arrays become lists, the same as in QueryFilter, so IN and NOT_IN take either
+		values[index] = BsonService.parseValue(value instanceof Object[] array ? Arrays.asList(array) : value);
+		bound[index] = true;
+
+		return this;
+	}
+
+	public PreparedQuery getPrepared() {
+		return prepared;
+	}
+
+	public String getType() {
+		return prepared.getType();
+	}
+
+	protected Bson filter() {
+		checkBound();
+		return prepared.filter(values.clone());
+	}
+
+	protected Bson update() {
+		checkBound();
+		return prepared.update(values.clone());
+	}
+
+	/**
+	 * Two bound queries are the same read if they come from the same plan with the same values.
+	 */
+	protected List<Object> shape() {
+		checkBound();
+		return Arrays.asList(prepared, Arrays.asList(values.clone()));
+	}
+
+	private void checkBound() {
+		for(int i = 0; i < bound.length; i++) {
+			if(!bound[i])
+				throw new IllegalStateException("No value was set for a parameter of this query. Expected " + prepared.getParams());
+		}
+	}
+}
@@ -2,9 +2,20 @@ package ca.elixa.db;
 
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
 import com.mongodb.client.model.Updates;
+import com.mongodb.MongoClientSettings;
 import io.vertx.core.json.JsonObject;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonDocument;
+import org.bson.BsonReader;
+import org.bson.BsonType;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonTypeClassMap;
+import org.bson.codecs.BsonTypeCodecMap;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 
@@ -27,64 +38,222 @@ public class BsonService {
         return generateFilter("_id", FilterOperator.EQUAL, new ObjectId(id));
     }
 
+    /**
+     * Match a document only while it's at the given version. See {@link Entity#isVersioned()}
+     * @param id
+     * @param version - 0 for a document that has never been saved with a version
+     * @return
+     */
+    protected static Bson getFilterForVersion(String id, long version) {
+        Bson versionFilter = version == 0 ? Filters.exists(Entity.VERSION_FIELD, false) : Filters.eq(Entity.VERSION_FIELD, version);
+
+        return Filters.and(getFilterForId(id), versionFilter);
+    }
+
+    /**
+     * Generates a Bson filter matching any of the given keys' IDs. The keys should all be the same type.
+     * @param keys
+     * @return
+     */
+    protected static Bson getFilterForIds(Iterable<Key> keys) {
+        List<ObjectId> ids = new ArrayList<>();
+
+        for(Key key : keys)
+            ids.add(new ObjectId(key.getId()));
+
+        return Filters.in("_id", ids);
+    }
+
     /**
      * Generate a bson projection
-     * @param projections - a set of strings; the property names we are projecting
-     * @return the composed bson projections
+     * @param projections - a set of strings; the property names we are projecting. This can be null.
+     * @return the composed bson projections, or null if there are none
      */
     protected static Bson generateProjections(Set<String> projections) {
+        if(projections == null || projections.isEmpty())
+            return null;
+
         return Projections.include(projections.toArray(new String[projections.size()]));
     }
 
+    /**
+     * Generate a bson sort. _id is always added as the final tie breaker.
+     * @param sorts - field name to ascending, in order of significance
+     * @return the composed bson sort, or null if there are no sorts
+     */
+    protected static Bson generateSort(Map<String, Boolean> sorts) {
+        if(sorts.isEmpty())
+            return null;
+
+        List<Bson> bsonSorts = new ArrayList<>();
+
+        for(Map.Entry<String, Boolean> entry : sorts.entrySet())
+            bsonSorts.add(entry.getValue() ? Sorts.ascending(entry.getKey()) : Sorts.descending(entry.getKey()));
+
+        if(!sorts.containsKey("_id"))
+            bsonSorts.add(Sorts.ascending("_id"));
+
+        return Sorts.orderBy(bsonSorts);
+    }
+
+    /**
+     * Generate the filter for keyset pagination: everything strictly after the given position in the sort order.
+     * For sorts (a, b) and position (x, y, id) this is
+     * a > x OR (a == x AND b > y) OR (a == x AND b == y AND _id > id), flipping the comparison for descending fields.
+     * @param sorts - field name to ascending, in order of significance
+     * @param after - the position; the value of every sort field, followed by _id
+     * @return the composed bson filter
+     */
+    protected static Bson generateKeysetFilter(Map<String, Boolean> sorts, Map<String, Object> after) {
+        List<Bson> branches = new ArrayList<>();
+        List<Bson> equalSoFar = new ArrayList<>();
+
+        for(Map.Entry<String, Object> entry : after.entrySet()) {
+            String field = entry.getKey();
+            Object value = parseValue(entry.getValue());
+
+            boolean ascending = sorts.getOrDefault(field, true);
+
+            List<Bson> branch = new ArrayList<>(equalSoFar);
+            branch.add(generateFilter(field, ascending ? FilterOperator.GREATER : FilterOperator.LESS, value));
+            branches.add(branch.size() == 1 ? branch.get(0) : Filters.and(branch));
+
+            equalSoFar.add(generateFilter(field, FilterOperator.EQUAL, value));
+        }
+
+        return Filters.or(branches);
+    }
+
     /**
      * Generate a bson update
-     * @param updates - a string-object map of the updates to apply
+     * @param updates - a string-<updateoperator-object> map of the updates to apply
      * @return the composed bson updates
      */
-    protected static Bson generateUpdates(Map<String, Object> updates) {
+    protected static Bson generateUpdates(Map<String, Pair<UpdateOperator, Object>> updates) {
         List<Bson> bsonUpdates = new ArrayList<>();
 
-        for(Map.Entry<String, Object> entry : updates.entrySet()) {
+        for(Map.Entry<String, Pair<UpdateOperator, Object>> entry : updates.entrySet()) {
 
             //ensure that we parse keys into documents
-            Object value = parseValue(entry.getValue());
+            Object value = parseValue(entry.getValue().getValue());
 
-            bsonUpdates.add(Updates.set(entry.getKey(), value));
+            bsonUpdates.add(generateUpdate(entry.getKey(), entry.getValue().getKey(), value));
         }
 
 
         return Updates.combine(bsonUpdates);
     }
 
+    /**
+     * Generate a SINGLE bson update
+     * @param fieldName - the field we're changing
+     * @param op - the UpdateOperator we're using($set, $inc, etc)
+     * @param value - the operand
+     * @return the bson update
+     */
+    protected static Bson generateUpdate(String fieldName, UpdateOperator op, Object value) {
+        switch(op) {
+            case SET:
+                return Updates.set(fieldName, value);
+            case INC:
+                if(value instanceof Number amount)
+                    return Updates.inc(fieldName, amount);
+                //a QueryParam isn't a number yet
+                return new Document("$inc", new Document(fieldName, value));
+            case PUSH:
+                return Updates.push(fieldName, value);
+            case ADD_TO_SET:
+                return Updates.addToSet(fieldName, value);
+            case PULL:
+                return Updates.pull(fieldName, value);
+            case MIN:
+                return Updates.min(fieldName, value);
+            case MAX:
+                return Updates.max(fieldName, value);
+            default:
+                throw new IllegalArgumentException("Invalid update operator " + op.toString());
+        }
+    }
+
+    /**
+     * Generate the partial update for an entity: a $set for every field that changed and an $unset for every field
+     * that was removed since it was loaded.
+     * @param ent
+     * @return the composed bson updates
+     */
+    protected static Bson generateEntityUpdate(Entity ent) {
+        List<Bson> bsonUpdates = new ArrayList<>();
+
+        for(String field : ent.getDirtyFields())
+            bsonUpdates.add(Updates.set(field, ent.getDocument().get(field)));
+
+        for(String field : ent.getUnsetFields())
+            bsonUpdates.add(Updates.unset(field));
+
+        return Updates.combine(bsonUpdates);
+    }
+
     /**
      * Generate a composite bson filter
      * TODO helper methods for queries
-     * @param filters - a string-<filteroperator-object> map of the filters. see Query and QueryService for impl
+     * @param filters - the filters, ANDed together. see Query and QueryService for impl
      * @return the composed Bson
      */
-    protected static Bson generateCompositeFilter(Map<String, Pair<FilterOperator, Object>> filters) {
+    protected static Bson generateCompositeFilter(List<QueryFilter> filters) {
 
-        if(filters.size() == 0)
-            filters.put("__", new Pair<>(FilterOperator.EQUAL, null));
+        //an empty filter matches everything
+        if(filters.isEmpty())
+            return new BsonDocument();
 
         List<Bson> builtFilters = new ArrayList<>();
 
         //iterate over all the filters
-        for(var entry : filters.entrySet()) {
-            String type = entry.getKey();
+        for(QueryFilter filter : filters)
+            builtFilters.add(generateFilter(filter));
 
+        //Compose the final filter.
+        if(builtFilters.size() == 1)
+            return builtFilters.get(0);
 
-            Pair<FilterOperator, Object> rawFilter = entry.getValue();
+        return Filters.and(builtFilters);
+        //return Filters.and(builtFilters.toArray(new Bson[builtFilters.size()]));
+    }
 
-            //Ensure that we parse keys into documents
-            Object value = parseValue(rawFilter.getValue());
+    /**
+     * Generate the full filter for a query: its filters, plus its keyset position if it has one.
+     * Counts, updates and deletes use this too, so they act on the same documents a find would return.
+     * @param q
+     * @return the composed Bson
+     */
+    protected static Bson generateQueryFilter(Query q) {
+        Bson filter = generateCompositeFilter(q.filters);
+
+        if(q.startAfter != null)
+            filter = Filters.and(filter, generateKeysetFilter(q.sorts, q.startAfter));
+
+        return filter;
+    }
 
-            builtFilters.add(generateFilter(type, rawFilter.getKey(), value));
+    /**
+     * Generate the bson for one filter, recursing into groups
+     * @param filter
+     * @return the bson filter
+     */
+    protected static Bson generateFilter(QueryFilter filter) {
+        if(!filter.isGroup()) {
+            //Ensure that we parse keys into documents
+            return generateFilter(filter.getField(), filter.getOperator(), parseValue(filter.getValue()));
         }
 
-        //Compose the final filter.
-        return Filters.and(builtFilters);
-        //return Filters.and(builtFilters.toArray(new Bson[builtFilters.size()]));
+        List<Bson> branches = new ArrayList<>();
+
+        for(QueryFilter branch : filter.getBranches())
+            branches.add(generateFilter(branch));
+
+        if(branches.size() == 1)
+            return branches.get(0);
+
+        return filter.isOr() ? Filters.or(branches) : Filters.and(branches);
     }
 
     /**
@@ -108,6 +277,19 @@ public class BsonService {
                 return Filters.lt(fieldName, value);
             case LESS_EQUAL:
                 return Filters.lte(fieldName, value);
+            //a QueryParam isn't a list or boolean yet, so those are written out by hand
+            case IN:
+                if(value instanceof Iterable<?> values)
+                    return Filters.in(fieldName, values);
+                return new Document(fieldName, new Document("$in", value));
+            case NOT_IN:
+                if(value instanceof Iterable<?> values)
+                    return Filters.nin(fieldName, values);
+                return new Document(fieldName, new Document("$nin", value));
+            case EXISTS:
+                if(value instanceof Boolean exists)
+                    return Filters.exists(fieldName, exists);
+                return new Document(fieldName, new Document("$exists", value));
             default:
                 throw new IllegalArgumentException("Invalid filter operator " + op.toString());
         }
@@ -126,7 +308,7 @@ public class BsonService {
             return key.toDocument();
         //if this object is an entity, we convert it to a document.
         if(obj instanceof Entity ent)
-            return ent.raw;
+            return ent.getDocument();
         //if this object is a list, we iterate over it, parsing each time
         if(obj instanceof List){
             List<Object> list = new ArrayList<>();
@@ -176,4 +358,55 @@ public class BsonService {
 
         return json;
     }
+
+    protected static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec(MongoClientSettings.getDefaultCodecRegistry());
+    private static final BsonTypeCodecMap VALUE_CODECS = new BsonTypeCodecMap(new BsonTypeClassMap(), MongoClientSettings.getDefaultCodecRegistry());
+
+    /**
+     * Decode a single top level field out of a raw document, skipping over the bytes of every other field.
+     * The value comes out the same as it would in a decoded Document.
+     * @param doc - the raw document
+     * @param field - the top level property
+     * @return the decoded value, or null if the field isn't there
+     */
+    protected static Object readField(RawBsonDocument doc, String field) {
+        try(BsonBinaryReader reader = new BsonBinaryReader(doc.getByteBuffer().asNIO())) {
+            reader.readStartDocument();
+
+            while(reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                if(!reader.readName().equals(field)) {
+                    reader.skipValue();
+                    continue;
+                }
+
+                return readValue(reader, DecoderContext.builder().build());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Decode the value the reader is sitting on, the same way a Document would.
+     * @param reader - positioned on a value, just after its name
+     * @param context
+     * @return
+     */
+    protected static Object readValue(BsonReader reader, DecoderContext context) {
+        if(reader.getCurrentBsonType() == BsonType.NULL) {
+            reader.readNull();
+            return null;
+        }
+
+        return VALUE_CODECS.get(reader.getCurrentBsonType()).decode(reader, context);
+    }
+
+    /**
+     * Decode all of a raw document.
+     * @param doc
+     * @return a mutable copy
+     */
+    protected static Document decode(RawBsonDocument doc) {
+        return doc.decode(DOCUMENT_CODEC);
+    }
 }
@@ -0,0 +1,187 @@
+package ca.elixa.db;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWrapper;
+import org.bson.BsonSymbol;
+import org.bson.BsonValue;
+import org.bson.BsonWriter;
+import org.bson.codecs.BsonValueCodec;
+import org.bson.codecs.Codec;
+import org.bson.codecs.Encoder;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+
+import com.mongodb.MongoClientSettings;
+
+/**
+ * A Bson document compiled once, with slots for the {@link QueryParam}s in it. Binding values doesn't rebuild
+ * anything; the bound Bson writes the compiled document straight to the wire, dropping the values into their slots.
+ * See {@link PreparedQuery}
+ *
+ * This is immutable, and so ThreadSafe.
+ *
+ * @author Evan
+ *
+ */
+final class BsonTemplate {
+
+	//QueryParams are encoded as symbols with this prefix while compiling, so we can find them again
+	private static final String MARKER = "\u0000param:";
+
+	private static final BsonValueCodec BSON_VALUE_CODEC = new BsonValueCodec();
+
+	private final DocumentNode root;
+
+	private BsonTemplate(DocumentNode root) {
+		this.root = root;
+	}
+
+	/**
+	 * @param bson - the document to compile. It may contain QueryParams anywhere a value goes.
+	 * @param params - the index of every parameter seen so far. New parameters are added to it.
+	 * @return
+	 */
+	static BsonTemplate compile(Bson bson, Map<String, Integer> params) {
+		CodecRegistry registry = CodecRegistries.fromRegistries(
+				CodecRegistries.fromCodecs(new ParamCodec()),
+				MongoClientSettings.getDefaultCodecRegistry());
+
+		return new BsonTemplate(compileDocument(bson.toBsonDocument(BsonDocument.class, registry), params));
+	}
+
+	/**
+	 * @param values - the value of each parameter, by index. Already run through BsonService.parseValue
+	 * @return the document with the values in place
+	 */
+	Bson bind(Object[] values) {
+		return new Bson() {
+			@Override
+			public <TDocument> BsonDocument toBsonDocument(Class<TDocument> documentClass, CodecRegistry registry) {
+				return new BsonDocumentWrapper<>(values, new Encoder<Object[]>() {
+					@Override
+					public void encode(BsonWriter writer, Object[] bound, EncoderContext context) {
+						root.write(writer, bound, registry, context);
+					}
+
+					@Override
+					public Class<Object[]> getEncoderClass() {
+						return Object[].class;
+					}
+				});
+			}
+		};
+	}
+
+	private static Node compileValue(BsonValue value, Map<String, Integer> params) {
+		if(value instanceof BsonSymbol symbol && symbol.getSymbol().startsWith(MARKER)) {
+			String name = symbol.getSymbol().substring(MARKER.length());
+			return new ParamNode(params.computeIfAbsent(name, k -> params.size()));
+		}
+
+		if(value instanceof BsonDocument doc)
+			return compileDocument(doc, params);
+
+		if(value instanceof BsonArray array) {
+			List<BsonValue> values = array.getValues();
+			Node[] nodes = new Node[values.size()];
+
+			for(int i = 0; i < nodes.length; i++)
+				nodes[i] = compileValue(values.get(i), params);
+
+			return new ArrayNode(nodes);
+		}
+
+		return new ConstantNode(value);
+	}
+
+	private static DocumentNode compileDocument(BsonDocument doc, Map<String, Integer> params) {
+		String[] names = new String[doc.size()];
+		Node[] values = new Node[doc.size()];
+
+		int i = 0;
+		for(Entry<String, BsonValue> entry : doc.entrySet()) {
+			names[i] = entry.getKey();
+			values[i] = compileValue(entry.getValue(), params);
+			i++;
+		}
+
+		return new DocumentNode(names, values);
+	}
+
+	private interface Node {
+		void write(BsonWriter writer, Object[] values, CodecRegistry registry, EncoderContext context);
+	}
+
+	private record DocumentNode(String[] names, Node[] values) implements Node {
+		@Override
+		public void write(BsonWriter writer, Object[] bound, CodecRegistry registry, EncoderContext context) {
+			writer.writeStartDocument();
+
+			for(int i = 0; i < names.length; i++) {
+				writer.writeName(names[i]);
+				values[i].write(writer, bound, registry, context);
+			}
+
+			writer.writeEndDocument();
+		}
+	}
+
+	private record ArrayNode(Node[] values) implements Node {
+		@Override
+		public void write(BsonWriter writer, Object[] bound, CodecRegistry registry, EncoderContext context) {
+			writer.writeStartArray();
+
+			for(Node value : values)
+				value.write(writer, bound, registry, context);
+
+			writer.writeEndArray();
+		}
+	}
+
+	private record ConstantNode(BsonValue value) implements Node {
+		@Override
+		public void write(BsonWriter writer, Object[] bound, CodecRegistry registry, EncoderContext context) {
+			context.encodeWithChildContext(BSON_VALUE_CODEC, writer, value);
+		}
+	}
+
+	private record ParamNode(int index) implements Node {
+		@Override
+		public void write(BsonWriter writer, Object[] bound, CodecRegistry registry, EncoderContext context) {
+			Object value = bound[index];
+
+			if(value == null) {
+				writer.writeNull();
+				return;
+			}
+
+			@SuppressWarnings("unchecked")
+			Codec<Object> codec = (Codec<Object>) registry.get(value.getClass());
+			context.encodeWithChildContext(codec, writer, value);
+		}
+	}
+
+	private static class ParamCodec implements Codec<QueryParam> {
+		@Override
+		public void encode(BsonWriter writer, QueryParam param, EncoderContext context) {
+			writer.writeSymbol(MARKER + param.getName());
+		}
+
+		@Override
+		public QueryParam decode(org.bson.BsonReader reader, org.bson.codecs.DecoderContext context) {
+			throw new UnsupportedOperationException("Query parameters are never decoded");
+		}
+
+		@Override
+		public Class<QueryParam> getEncoderClass() {
+			return QueryParam.class;
+		}
+	}
+}
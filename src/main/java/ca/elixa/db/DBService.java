@@ -2,19 +2,48 @@ package ca.elixa.db;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import ca.elixa.iris.Iris;
 import com.mongodb.client.*;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.configuration.CodecRegistries;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.DeleteOneModel;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
 
 
 /**
@@ -22,6 +51,10 @@ import com.mongodb.client.model.Filters;
  * My goal is to not expose the MongoDB api outside of this package.
  *
  * See {@link EntityFactory} for the generation of entity objects.
+ *
+ * This is ThreadSafe, and a single instance is meant to be shared by the whole process.
+ * Transactions, identity maps and bulk put mode all belong to the thread that started them.
+ * Outside of a transaction, operations don't use an explicit session, so the driver hands each one a pooled session of its own.
  * 
  * @author Evan
  *
@@ -34,16 +67,48 @@ public class DBService{
 	protected final EntityFactory entityService;
 	private final MongoClient client;
 	protected final MongoDatabase db;
-	protected final ClientSession session;
+
+	/**
+	 * Everything we track for a single thread.
+	 */
+	private static class ThreadState {
+		/** the session of the running transaction. null when there isn't one */
+		private ClientSession session = null;
+
+		/** the identity map for the current unit of work. null unless one has been started */
+		private IdentityMap identityMap = null;
+
+		private boolean bulkPutMode = false;
+		private int bulkBatchSize = DEFAULT_BULK_BATCH_SIZE;
+		private boolean bulkOrdered = true;
+		private List<Entity> pending = null;
+		private List<PutResult> bulkResults = null;
+
+		/** the pending writes, when the running transaction is a unit of work. null otherwise */
+		private UnitOfWork unitOfWork = null;
+
+		/** entities saved in the running transaction. Their saves are undone if it doesn't commit */
+		private final Set<Entity> savedInTx = Collections.newSetFromMap(new IdentityHashMap<>());
+
+		/** keys and types written in the running transaction. They're dropped from the shared caches again once it commits */
+		private final Set<Key> keysWrittenInTx = new HashSet<>();
+		private final Set<String> typesWrittenInTx = new HashSet<>();
+	}
+
+	private final ThreadLocal<ThreadState> threadState = ThreadLocal.withInitial(ThreadState::new);
 
 	public DBService(MongoClient client, EntityFactory cs) {
 		entityService = cs;
 		this.client = client;
-		session = client.startSession();
-		db = client.getDatabase(getDBName());
+
+		MongoDatabase database = client.getDatabase(getDBName());
+
+		//lets a find decode straight into entities. See EntityCodec
+		db = database.withCodecRegistry(CodecRegistries.fromRegistries(
+				CodecRegistries.fromProviders(new EntityCodecProvider(this)),
+				database.getCodecRegistry()));
 	}
 
-	//bad, because we use a single clientsession for the entire gig (which is perhaps unwise)
 	//public void stop(){
 	//	client.close();
 	//}
@@ -53,72 +118,472 @@ public class DBService{
 		return "gfl-test";
 	}
 
-	private boolean tx = false;
+	private ThreadState local(){
+		return threadState.get();
+	}
+
+	/**
+	 * @return the session of the calling thread's transaction, or null if it isn't in one.
+	 */
+	protected ClientSession getSession(){
+		return local().session;
+	}
 
+	/**
+	 * @return true if the calling thread is inside a transaction.
+	 */
 	public boolean txInProgress(){
-		return tx;
+		ClientSession session = getSession();
+
+		return session != null && session.hasActiveTransaction();
 	}
 
+	/**
+	 * Start a transaction on the calling thread. It gets a session of its own, which is released by
+	 * {@link #commitTransaction()} or {@link #abortTransaction()}.
+	 */
 	public void startTransaction(){
-		session.startTransaction();
-		tx = true;
+		startTransaction(false);
+	}
+
+	/**
+	 * Start a transaction on the calling thread. It gets a session of its own, which is released by
+	 * {@link #commitTransaction()} or {@link #abortTransaction()}.
+	 * @param unitOfWork - if true, puts and deletes are held back and flushed on commit. See {@link #doUnitOfWork(Runnable)}
+	 */
+	public void startTransaction(boolean unitOfWork){
+		ThreadState state = local();
+
+		if(state.session != null)
+			throw new IllegalStateException("This thread already has a transaction in progress");
+
+		ClientSession session = client.startSession();
+
+		try{
+			session.startTransaction();
+		}
+		catch(Exception e){
+			session.close();
+			throw e;
+		}
+
+		state.session = session;
+		state.unitOfWork = unitOfWork ? new UnitOfWork() : null;
 	}
 
+	/**
+	 * Flush the unit of work, if there is one, and commit the calling thread's transaction.
+	 * If anything fails, the transaction is aborted and the exception is rethrown.
+	 */
 	public void commitTransaction(){
-		tx = false;
+		ThreadState state = local();
+		ClientSession session = state.session;
+
+		if(session == null)
+			throw new IllegalStateException("There is no transaction in progress on this thread");
+
 		try{
+			flushUnitOfWork();
 			session.commitTransaction();
+			commitSaves(state);
 		}
 		catch(Exception e){
+			rollbackSaves(state);
 			throw e;
 		}
+		finally{
+			state.session = null;
+			state.unitOfWork = null;
+			//closing a session also aborts its transaction, if it is still open
+			session.close();
+		}
 	}
 
+	/**
+	 * Abort the calling thread's transaction. Anything pending in its unit of work is thrown away.
+	 */
 	public void abortTransaction(){
-		tx = false;
+		ThreadState state = local();
+		ClientSession session = state.session;
+
+		if(session == null)
+			throw new IllegalStateException("There is no transaction in progress on this thread");
+
+		state.session = null;
+		state.unitOfWork = null;
 		try{
 			session.abortTransaction();
 		}
-		catch(Exception e){
-			throw e;
+		finally{
+			rollbackSaves(state);
+			session.close();
 		}
 	}
 
 	/**
 	 * Perform an action inside of a mongodb transaction.
-	 * This isn't ThreadSafe
+	 * The transaction belongs to the calling thread, so many threads can run their own at the same time.
+	 * If the calling thread is already in a transaction, the action simply joins it.
 	 *
 	 * @param action - what is being run inside the script context
 	 * @return
 	 */
 	public boolean doTransaction(Runnable action) {
+		return doTransaction(action, false);
+	}
+
+	/**
+	 * Perform an action inside of a mongodb transaction.
+	 * The transaction belongs to the calling thread, so many threads can run their own at the same time.
+	 * If the calling thread is already in a transaction, the action simply joins it.
+	 *
+	 * @param action - what is being run inside the script context
+	 * @param useIdentityMap - if true, the action runs inside its own identity map. See {@link #doWithIdentityMap(Supplier)}
+	 * @return
+	 */
+	public boolean doTransaction(Runnable action, boolean useIdentityMap) {
+		if(useIdentityMap)
+			return doWithIdentityMap(() -> doTransactionInternal(withFreshIdentityMap(action), false));
+
+		return doTransactionInternal(action, false);
+	}
+
+	/**
+	 * Perform an action as a unit of work: a transaction with its own identity map, where puts and deletes are held back
+	 * instead of being sent one at a time. Saving the same entity twice only writes it once.
+	 * Just before the commit, everything is flushed as one ordered bulkWrite per collection.
+	 *
+	 * Reads see the pending writes: getEntity returns the pending instance (or null if it's pending deletion), and any
+	 * query flushes the unit of work before it runs.
+	 * While the unit of work is running, delete returns the number of keys scheduled rather than deleted, and put
+	 * returns no results. bulkPut always writes immediately.
+	 * If the calling thread is already in a transaction, the unit of work runs inside it, and is flushed when the
+	 * action returns.
+	 *
+	 * @param action - what is being run inside the script context
+	 * @return
+	 */
+	public boolean doUnitOfWork(Runnable action) {
+		return doWithIdentityMap(() -> doTransactionInternal(withFreshIdentityMap(action), true));
+	}
+
+	/**
+	 * Run a read-modify-write with optimistic locking instead of a transaction. The action should load what it changes,
+	 * change it and put it. If a versioned save finds the entity was changed in the meantime, the whole action is run
+	 * again, up to maxAttempts times. Only versioned entities are checked; see {@link Entity#isVersioned()}
+	 *
+	 * Inside a transaction the action only runs once, and a conflict aborts the transaction instead.
+	 * @param maxAttempts - how many times to run the action, at most
+	 * @param action
+	 * @throws VersionConflictException if the last attempt still conflicted
+	 */
+	public void retryOnConflict(int maxAttempts, Runnable action) {
+		retryOnConflict(maxAttempts, () -> {
+			action.run();
+			return null;
+		});
+	}
+
+	/**
+	 * Same as {@link #retryOnConflict(int, Runnable)}, for an action with a result.
+	 * @param maxAttempts - how many times to run the action, at most
+	 * @param action
+	 * @return the result of the attempt that went through
+	 * @throws VersionConflictException if the last attempt still conflicted
+	 */
+	public <R> R retryOnConflict(int maxAttempts, Supplier<R> action) {
+		if(maxAttempts < 1)
+			throw new IllegalArgumentException("maxAttempts must be at least 1");
+
+		if(txInProgress())
+			return action.get();
+
+		for(int attempt = 1; ; attempt++) {
+			try {
+				return action.get();
+			}
+			//conflict() already forgot the stale copy, so the next attempt loads it fresh
+			catch(VersionConflictException e) {
+				if(attempt >= maxAttempts)
+					throw e;
+			}
+		}
+	}
+
+	/**
+	 * The driver may retry a transaction's action, so anything we loaded in a failed attempt has to go.
+	 */
+	private Runnable withFreshIdentityMap(Runnable action) {
+		return () -> {
+			local().identityMap.clear();
+			action.run();
+		};
+	}
+
+	private boolean doTransactionInternal(Runnable action, boolean unitOfWork) {
+		ThreadState state = local();
 
-		//action.run();
+		if(state.session != null) {
+			//join the running transaction, holding our writes back if it isn't already a unit of work
+			if(!unitOfWork || state.unitOfWork != null) {
+				action.run();
+				return true;
+			}
 
-		//return true;
+			state.unitOfWork = new UnitOfWork();
 
-		//try{
-		//	return true;
-		//}
-		//catch(Exception e){
-		//	e.printStackTrace();
-		//	return false;
-		//}
+			try {
+				action.run();
+				flushUnitOfWork();
+			}
+			finally {
+				state.unitOfWork = null;
+			}
 
+			return true;
+		}
 
         //TODO consider transactionOptions
-        return session.withTransaction(() -> {
-            try {
-                action.run();
-                return true;
-            }
-            //if any error occurs, we simply report back. Might be worth throwing E instead? TODO
-            catch(Exception e) {
-                throw e;
-            }
-        });
+        try(ClientSession session = client.startSession()){
+            state.session = session;
+
+            boolean result = session.withTransaction(() -> {
+                try {
+                    //this may be a retry, so start from a clean slate
+                    rollbackSaves(state);
+                    state.unitOfWork = unitOfWork ? new UnitOfWork() : null;
+
+                    action.run();
+
+                    flushUnitOfWork();
+                    return true;
+                }
+                //if any error occurs, we simply report back. Might be worth throwing E instead? TODO
+                catch(Exception e) {
+                    throw e;
+                }
+            });
+
+            commitSaves(state);
+            return result;
+        }
+        catch(Exception e){
+            rollbackSaves(state);
+            throw e;
+        }
+        finally{
+            state.session = null;
+            state.unitOfWork = null;
+        }
+	}
+
+	/**
+	 * @return the calling thread's unit of work. null unless it is running one.
+	 */
+	public UnitOfWork getUnitOfWork(){
+		return local().unitOfWork;
+	}
+
+	/**
+	 * Send everything pending in the calling thread's unit of work, as one ordered bulkWrite per collection.
+	 * This is done automatically before a commit and before any query. It does nothing outside of a unit of work.
+	 */
+	public void flushUnitOfWork(){
+		UnitOfWork uow = local().unitOfWork;
+
+		if(uow == null || uow.isEmpty())
+			return;
+
+		List<Entity> saves = uow.getPendingSaves();
+		List<Key> deletes = uow.getPendingDeletes();
+
+		uow.clear();
+
+		Map<String, List<WriteModel<Document>>> models = new LinkedHashMap<>();
+		List<Entity> sent = new ArrayList<>();
+
+		for(Entity ent : saves) {
+			WriteModel<Document> model = toWriteModel(ent);
+
+			if(model == null)
+				continue;
+
+			//we're always in a transaction here, so a conflict rolls back everything else
+			if(sendsAlone(ent)) {
+				VersionConflictException conflict = checkMatched(ent, writeInternal(db.getCollection(ent.getType()), model));
+
+				if(conflict != null)
+					throw conflict;
+
+				sent.add(ent);
+				continue;
+			}
+
+			models.computeIfAbsent(ent.getType(), k -> new ArrayList<>()).add(model);
+			sent.add(ent);
+		}
+
+		for(Key key : deletes)
+			models.computeIfAbsent(key.getType(), k -> new ArrayList<>()).add(new DeleteOneModel<>(BsonService.getFilterForId(key.getId())));
+
+		for(Entry<String, List<WriteModel<Document>>> entry : models.entrySet())
+			bulkWrite(db.getCollection(entry.getKey()), entry.getValue(), true);
+
+		for(Entity ent : sent)
+			afterPut(ent);
+
+		for(Key key : deletes)
+			afterDelete(key);
+	}
+
+	/**
+	 * The transaction committed, so every save made in it sticks.
+	 */
+	private void commitSaves(ThreadState state) {
+		for(Entity ent : state.savedInTx)
+			ent.commitSave();
+
+		state.savedInTx.clear();
+
+		//other threads saw the old documents (or none) while the transaction was open, and may have cached them
+		for(Key key : state.keysWrittenInTx) {
+			if(cache != null)
+				cache.invalidate(key);
+
+			if(missingKeys != null)
+				missingKeys.invalidate(key);
+		}
+
+		if(cache != null) {
+			for(String type : state.typesWrittenInTx)
+				cache.invalidateType(type);
+		}
+
+		state.keysWrittenInTx.clear();
+		state.typesWrittenInTx.clear();
+	}
+
+	/**
+	 * The transaction didn't commit (or is being retried), so every entity saved in it has to be saved again.
+	 */
+	private void rollbackSaves(ThreadState state) {
+		for(Entity ent : state.savedInTx)
+			ent.rollbackSave();
+
+		state.savedInTx.clear();
+
+		//nothing was written, so there's nothing to drop again
+		state.keysWrittenInTx.clear();
+		state.typesWrittenInTx.clear();
+	}
+
+	/**
+	 * Start an identity map on the calling thread. Until {@link #endIdentityMap()} is called, getEntity and getEntities
+	 * will hand back the instance we've already loaded for a key instead of going to the DB.
+	 * If one is already running, this does nothing.
+	 */
+	public void startIdentityMap(){
+		ThreadState state = local();
+
+		if(state.identityMap == null)
+			state.identityMap = new IdentityMap();
+	}
+
+	/**
+	 * Stop using the calling thread's identity map and forget everything in it.
+	 */
+	public void endIdentityMap(){
+		ThreadState state = local();
+
+		if(state.identityMap != null)
+			state.identityMap.clear();
+
+		state.identityMap = null;
+	}
+
+	/**
+	 * @return the calling thread's identity map. Can be null.
+	 */
+	public IdentityMap getIdentityMap(){
+		return local().identityMap;
+	}
+
+	/**
+	 * Run an action inside its own identity map, which is thrown away afterwards.
+	 * Whatever identity map was running before is restored once the action finishes.
+	 * @param action
+	 * @return whatever the action returns
+	 */
+	public <R> R doWithIdentityMap(Supplier<R> action){
+		ThreadState state = local();
+
+		IdentityMap previous = state.identityMap;
+		state.identityMap = new IdentityMap();
+
+		try{
+			return action.get();
+		}
+		finally{
+			state.identityMap.clear();
+			state.identityMap = previous;
+		}
+	}
+
+	/**
+	 * The shared second level cache. This can be null.
+	 */
+	private volatile EntityCache cache = null;
+
+	/**
+	 * Put a shared cache underneath getEntity and getEntities. The same cache should be handed to every DBService in
+	 * the process. Reads made inside a transaction never touch the cache.
+	 * @param cache - the cache, or null to stop caching
+	 */
+	public void setEntityCache(EntityCache cache){
+		this.cache = cache;
+	}
+
+	public EntityCache getEntityCache(){
+		return cache;
+	}
+
+	/**
+	 * @return the cache, if we're allowed to read from it right now. Otherwise null.
+	 */
+	private EntityCache readableCache(){
+		if(txInProgress())
+			return null;
+
+		return cache;
+	}
+
+	/**
+	 * The shared cache of keys that don't exist. This can be null.
+	 */
+	private volatile MissingKeyCache missingKeys = null;
+
+	/**
+	 * Remember keys that getEntity, getEntities and entityExists found missing, so asking for them again doesn't go to
+	 * the DB. Like the entity cache, it should be shared by every DBService in the process, and it's never used inside
+	 * a transaction.
+	 * @param missingKeys - the cache, or null to stop using one
+	 */
+	public void setMissingKeyCache(MissingKeyCache missingKeys){
+		this.missingKeys = missingKeys;
+	}
+
+	public MissingKeyCache getMissingKeyCache(){
+		return missingKeys;
+	}
 
+	/**
+	 * @return the missing key cache, if we're allowed to use it right now. Otherwise null.
+	 */
+	private MissingKeyCache readableMissingKeys(){
+		if(txInProgress())
+			return null;
 
+		return missingKeys;
 	}
 
 	public Long test(){
@@ -173,22 +638,69 @@ public class DBService{
 		return entityService.buildEntity(this, type, new Document(), true);
 	}
 
+	/**
+	 * Create a batch of new entities of the same type. Their keys are all allocated up front.
+	 * @param type - the entity type
+	 * @param count - how many entities to create
+	 * @return the new entities. None of them have been saved yet.
+	 */
+	public <T extends Entity> List<T> createEntities(String type, int count){
+		List<T> result = new ArrayList<>(count);
+
+		for(Key key : generateKeys(type, count)) {
+			Document doc = new Document("_id", new ObjectId(key.getId()));
+
+			result.add(entityService.buildEntity(this, type, doc, true));
+		}
+
+		return result;
+	}
+
+	private volatile KeyStrategy keyStrategy = KeyStrategy.OBJECT_ID;
+
+	public KeyStrategy getKeyStrategy(){
+		return keyStrategy;
+	}
+
+	/**
+	 * Choose how keys for new entities are generated. The default is {@link KeyStrategy#OBJECT_ID}, which never
+	 * touches the DB.
+	 * @param strategy
+	 */
+	public void setKeyStrategy(KeyStrategy strategy){
+		keyStrategy = strategy;
+	}
+
+	/**
+	 * Generate a key for a new entity, following the current {@link KeyStrategy}.
+	 * @param type
+	 * @return
+	 */
 	public Key generateKey(String type) {
-		
-		boolean resolved = false;
-		
-		ObjectId random = null;
-		
-		while(!resolved) {
-			random = new ObjectId();
-			
-			Key key = new Key(type, random.toHexString());
 
-			if(entityExists(key))
-				resolved = true;
+		Key key = new Key(type, new ObjectId());
+
+		if(keyStrategy == KeyStrategy.VERIFIED) {
+			while(entityExists(key))
+				key = new Key(type, new ObjectId());
 		}
-		
-		return new Key(type, random.toHexString());
+
+		return key;
+	}
+
+	/**
+	 * Generate a batch of keys for new entities, following the current {@link KeyStrategy}.
+	 * @param type
+	 * @param count
+	 * @return
+	 */
+	public List<Key> generateKeys(String type, int count) {
+		List<Key> result = new ArrayList<>(count);
+
+		for(int i = 0; i < count; i++)
+			result.add(generateKey(type));
+
+		return result;
 	}
 	
 
@@ -206,95 +718,668 @@ public class DBService{
 	/**
 	 * Same as calling put(Iterable<Entity>)
 	 * @param entities
+	 * @return the outcome for each entity. See {@link #put(Iterable[])}
 	 */
 
-	public void put(Entity...entities ) {
-		put(Arrays.asList(entities));
+	public List<PutResult> put(Entity...entities ) {
+		return put(Arrays.asList(entities));
 	}
 	
 	/**
-	 * Insert a list of entities into the database
+	 * Insert a list of entities into the database.
+	 * Each collection is written with ordered bulkWrites of up to {@link #getBulkBatchSize()} entities, rather than
+	 * one round trip per entity. If the server rejects an entity, the error is thrown once the batch it was in finishes,
+	 * same as if we had put them one by one.
+	 *
+	 * While bulk put mode is on, the entities are buffered instead. See {@link #startBulkPutMode(int, boolean)}
+	 * The same goes for a unit of work. See {@link #doUnitOfWork(Runnable)}
 	 * @param ents
+	 * @return the outcome for each entity, grouped by type, in the order given within each type. Empty if we're in bulk
+	 * put mode or a unit of work.
 	 */
-	public <T extends Entity> void put(Iterable<T>... ents) {
-
-		for(var v : ents){
-			Map<String, List<T>> sorted = sortEntitiesByType(v);
+	public <T extends Entity> List<PutResult> put(Iterable<T>... ents) {
+		List<PutResult> results = new ArrayList<>();
 
-			for(Entry<String, List<T>> entry : sorted.entrySet()) {
-				MongoCollection<Document> col = db.getCollection(entry.getKey());
+		ThreadState state = local();
+		boolean buffer = state.bulkPutMode || state.unitOfWork != null;
 
-				for(Entity ent : entry.getValue())
-					putInternal(ent, col);
+		for(var v : ents){
+			if(buffer) {
+				for(Entity ent : v)
+					putInternal(ent, null);
+				continue;
 			}
+
+			bulkPutInternal(v, true, true, bulkBatchSize, results);
 		}
-	}
 
-	private boolean bulkPutMode = false;
-	private List<Entity> pending = null;
-	public void startBulkPutMode(){
-		bulkPutMode = true;
+		return results;
 	}
 
-	public void bulkCommit(){
-		bulkPutMode = false;
-		put(pending);
-		pending = null;
-	}
-	
 	/**
-	 * Put an entity to the DB.
-	 * @param ent - the Entity to put
-	 * @param col - the MongoCollection we're putting this document to
+	 * Insert a list of entities into the database with one bulkWrite per collection (per batch).
+	 * Unlike {@link #put(Iterable[])}, this never throws on a rejected entity; check the results instead.
+	 * @param ents - the entities to save
+	 * @param ordered - if true, each batch stops at the first failure. If false, the server attempts every entity.
+	 * @return the outcome for each entity, grouped by type, in the order given within each type.
 	 */
-	private void putInternal(Entity ent, MongoCollection<Document> col) {
+	public <T extends Entity> List<PutResult> bulkPut(Iterable<T> ents, boolean ordered) {
+		List<PutResult> results = new ArrayList<>();
 
-		if(bulkPutMode) {
-			if (pending == null)
-				pending = new ArrayList<>();
+		bulkPutInternal(ents, ordered, false, bulkBatchSize, results);
 
-			pending.add(ent);
+		return results;
+	}
 
-			return;
-		}
+	public static final int DEFAULT_BULK_BATCH_SIZE = 1000;
 
-		
-		//TODO consider a put event handler
-		
-		if(ent.projected()) {
-			Iris.warning("Attempted to save projected entity of key");
-			return;
-		}
+	private volatile int bulkBatchSize = DEFAULT_BULK_BATCH_SIZE;
 
-		//Iris.debug("SAVING ENTITY " + ent.getId() + " of type " + ent.getType() + " of name " + ent.getName());
+	/**
+	 * @return the most entities we'll send in a single bulkWrite.
+	 */
+	public int getBulkBatchSize(){
+		return bulkBatchSize;
+	}
 
+	public void setBulkBatchSize(int size){
+		if(size < 1)
+			throw new IllegalArgumentException("Bulk batch size must be positive, got " + size);
 
-		if(ent.isNew())
-			col.insertOne(session, ent.raw);
-		else
-			col.replaceOne(session, BsonService.getFilterForId(ent.getId()), ent.raw);
-	}
-	
-	public <T extends Entity> void deleteEntity(T ent) {
-		delete(ent.getKey());
+		bulkBatchSize = size;
 	}
-	
+
+	/**
+	 * Same as startBulkPutMode(getBulkBatchSize(), true)
+	 */
+	public void startBulkPutMode(){
+		startBulkPutMode(bulkBatchSize, true);
+	}
+
+	/**
+	 * Start buffering the calling thread's puts instead of sending them. The buffer is flushed as a bulkWrite every time
+	 * it reaches batchSize entities, and once more on {@link #bulkCommit()}.
+	 * @param batchSize - how many entities we buffer before flushing
+	 * @param ordered - see {@link #bulkPut(Iterable, boolean)}
+	 */
+	public void startBulkPutMode(int batchSize, boolean ordered){
+		if(batchSize < 1)
+			throw new IllegalArgumentException("Bulk batch size must be positive, got " + batchSize);
+
+		ThreadState state = local();
+
+		state.bulkBatchSize = batchSize;
+		state.bulkOrdered = ordered;
+		state.bulkPutMode = true;
+	}
+
+	/**
+	 * Flush whatever is left in the buffer and stop bulk put mode.
+	 * @return the outcome of every entity put since bulk put mode started, including earlier automatic flushes.
+	 */
+	public List<PutResult> bulkCommit(){
+		ThreadState state = local();
+		state.bulkPutMode = false;
+
+		List<PutResult> results = state.bulkResults == null ? new ArrayList<>() : state.bulkResults;
+		List<Entity> pending = state.pending;
+
+		state.pending = null;
+		state.bulkResults = null;
+
+		if(pending != null)
+			bulkPutInternal(pending, state.bulkOrdered, false, state.bulkBatchSize, results);
+
+		return results;
+	}
+	
+	/**
+	 * Put an entity to the DB.
+	 * @param ent - the Entity to put
+	 * @param col - the MongoCollection we're putting this document to
+	 */
+	private void putInternal(Entity ent, MongoCollection<Document> col) {
+
+		ThreadState state = local();
+
+		if(state.bulkPutMode) {
+			if (state.pending == null)
+				state.pending = new ArrayList<>();
+
+			state.pending.add(ent);
+
+			if(state.pending.size() >= state.bulkBatchSize) {
+				if(state.bulkResults == null)
+					state.bulkResults = new ArrayList<>();
+
+				List<Entity> pending = state.pending;
+				state.pending = new ArrayList<>();
+
+				bulkPutInternal(pending, state.bulkOrdered, false, state.bulkBatchSize, state.bulkResults);
+			}
+
+			return;
+		}
+
+		
+		//TODO consider a put event handler
+		
+		if(!canSave(ent)) {
+			Iris.warning("Attempted to save projected entity of key " + ent.getKey());
+			return;
+		}
+
+		if(state.unitOfWork != null) {
+			state.unitOfWork.registerSave(ent);
+			return;
+		}
+
+		//Iris.debug("SAVING ENTITY " + ent.getId() + " of type " + ent.getType() + " of name " + ent.getName());
+
+		WriteModel<Document> model = toWriteModel(ent);
+
+		//nothing changed, so there's nothing to send
+		if(model == null)
+			return;
+
+		VersionConflictException conflict = checkMatched(ent, writeInternal(col, model));
+
+		if(conflict != null)
+			throw conflict;
+
+		afterPut(ent);
+	}
+
+	/**
+	 * Save entities with one bulkWrite per collection per batch.
+	 * @param ents - the entities to save
+	 * @param ordered - if each batch stops at its first failure
+	 * @param throwOnError - if true, a rejected batch rethrows the driver's exception once its results are recorded
+	 * @param batchSize - the most entities we send in one bulkWrite
+	 * @param results - where we record the outcome of each entity
+	 */
+	private <T extends Entity> void bulkPutInternal(Iterable<T> ents, boolean ordered, boolean throwOnError, int batchSize, List<PutResult> results) {
+		Map<String, List<T>> sorted = sortEntitiesByType(ents);
+
+		for(Entry<String, List<T>> entry : sorted.entrySet()) {
+			MongoCollection<Document> col = db.getCollection(entry.getKey());
+			List<T> all = entry.getValue();
+
+			for(int i = 0; i < all.size(); i += batchSize)
+				bulkWriteInternal(all.subList(i, Math.min(i + batchSize, all.size())), col, ordered, throwOnError, results);
+		}
+	}
+
+	/**
+	 * Save a batch of entities that all belong to the same collection, in the order they were given.
+	 * Writes share a bulkWrite, except versioned updates, which are sent on their own where they fall (see
+	 * {@link #sendsAlone(Entity)}); whatever came before them is sent first. Results are recorded in the same order.
+	 */
+	private <T extends Entity> void bulkWriteInternal(List<T> batch, MongoCollection<Document> col, boolean ordered, boolean throwOnError, List<PutResult> results) {
+		//the run of writes waiting to share a bulkWrite, and where each one's result goes
+		List<WriteModel<Document>> models = new ArrayList<>();
+		List<Entity> sent = new ArrayList<>();
+		List<Integer> slots = new ArrayList<>();
+
+		RuntimeException failure = null;
+
+		for(Entity ent : batch) {
+			if(!canSave(ent)) {
+				Iris.warning("Attempted to save projected entity of key " + ent.getKey());
+				results.add(new PutResult(ent.getKey(), PutResult.Status.SKIPPED));
+				continue;
+			}
+
+			WriteModel<Document> model = toWriteModel(ent);
+
+			if(model == null) {
+				results.add(new PutResult(ent.getKey(), PutResult.Status.UNCHANGED));
+				continue;
+			}
+
+			//in ordered mode, we stop at the first error
+			if(ordered && failure != null) {
+				results.add(new PutResult(ent.getKey(), PutResult.Status.NOT_ATTEMPTED));
+				continue;
+			}
+
+			if(!sendsAlone(ent)) {
+				slots.add(results.size());
+				results.add(null);
+				models.add(model);
+				sent.add(ent);
+				continue;
+			}
+
+			MongoBulkWriteException rejected = sendRun(col, models, sent, slots, ordered, results);
+
+			if(failure == null)
+				failure = rejected;
+
+			if(ordered && failure != null) {
+				results.add(new PutResult(ent.getKey(), PutResult.Status.NOT_ATTEMPTED));
+				continue;
+			}
+
+			VersionConflictException conflict = checkMatched(ent, writeInternal(col, model));
+
+			if(conflict != null) {
+				results.add(new PutResult(ent.getKey(), PutResult.Status.FAILED, conflict.getMessage()));
+
+				if(failure == null)
+					failure = conflict;
+				continue;
+			}
+
+			results.add(new PutResult(ent.getKey(), statusOf(model)));
+			afterPut(ent);
+		}
+
+		MongoBulkWriteException rejected = sendRun(col, models, sent, slots, ordered, results);
+
+		if(failure == null)
+			failure = rejected;
+
+		if(failure != null && throwOnError)
+			throw failure;
+	}
+
+	/**
+	 * Send a run of writes with a single bulkWrite, and record each one's result in the slot reserved for it.
+	 * The run is empty afterwards.
+	 * @return the driver's exception if part of the bulkWrite was rejected, otherwise null
+	 */
+	private MongoBulkWriteException sendRun(MongoCollection<Document> col, List<WriteModel<Document>> models, List<Entity> sent, List<Integer> slots, boolean ordered, List<PutResult> results) {
+		if(models.isEmpty())
+			return null;
+
+		MongoBulkWriteException failure = null;
+
+		try{
+			bulkWrite(col, models, ordered);
+		}
+		catch(MongoBulkWriteException e){
+			failure = e;
+		}
+		catch(RuntimeException e){
+			//we can't tell what went through, but the slots can't be left empty
+			for(int i = 0; i < sent.size(); i++)
+				results.set(slots.get(i), new PutResult(sent.get(i).getKey(), PutResult.Status.FAILED, e.getMessage()));
+			throw e;
+		}
+
+		Map<Integer, BulkWriteError> errors = new HashMap<>();
+		if(failure != null) {
+			for(BulkWriteError error : failure.getWriteErrors())
+				errors.put(error.getIndex(), error);
+		}
+
+		//in ordered mode, the server stops at the first error
+		int stoppedAt = ordered && !errors.isEmpty() ? errors.keySet().stream().min(Integer::compare).get() : Integer.MAX_VALUE;
+
+		for(int i = 0; i < sent.size(); i++) {
+			Entity ent = sent.get(i);
+			BulkWriteError error = errors.get(i);
+			PutResult result;
+
+			if(error != null)
+				result = new PutResult(ent.getKey(), PutResult.Status.FAILED, error.getMessage());
+			else if(i > stoppedAt)
+				result = new PutResult(ent.getKey(), PutResult.Status.NOT_ATTEMPTED);
+			else {
+				result = new PutResult(ent.getKey(), statusOf(models.get(i)));
+				afterPut(ent);
+			}
+
+			results.set(slots.get(i), result);
+		}
+
+		models.clear();
+		sent.clear();
+		slots.clear();
+
+		return failure;
+	}
+
+	private void bulkWrite(MongoCollection<Document> col, List<WriteModel<Document>> models, boolean ordered) {
+		ClientSession session = getSession();
+		BulkWriteOptions options = new BulkWriteOptions().ordered(ordered);
+
+		if(session == null)
+			col.bulkWrite(models, options);
+		else
+			col.bulkWrite(session, models, options);
+	}
+
+	private volatile boolean partialUpdates = false;
+
+	/**
+	 * Choose how existing entities are saved.
+	 * By default, the whole document is replaced every time.
+	 * With partial updates, only the fields that were set or removed since the entity was loaded are sent,
+	 * as a $set/$unset, and an entity with no changes isn't written at all.
+	 *
+	 * Partial updates only see changes made through the entity's setters. Before turning them on, make sure nothing
+	 * modifies raw, or a value returned by a getter (eg. a list from getListValue), in place without calling
+	 * {@link Entity#markDirty(String)}; those changes would never be written.
+	 * @param partial
+	 */
+	public void setPartialUpdates(boolean partial){
+		partialUpdates = partial;
+	}
+
+	public boolean usesPartialUpdates(){
+		return partialUpdates;
+	}
+
+	/**
+	 * Projected entities can't replace their document, since they don't have all of it.
+	 * With partial updates they can still send the fields that changed.
+	 * @param ent
+	 * @return true if we're able to save this entity.
+	 */
+	protected boolean canSave(Entity ent) {
+		return !ent.projected() || (partialUpdates && !ent.isNew());
+	}
+
+	/**
+	 * @param ent
+	 * @return the bulk write operation that saves this entity, or null if there is nothing to send.
+	 */
+	protected WriteModel<Document> toWriteModel(Entity ent) {
+		if(ent.isVersioned())
+			return toVersionedWriteModel(ent);
+
+		if(ent.isNew())
+			return new InsertOneModel<>(ent.getDocument());
+
+		if(!partialUpdates)
+			return new ReplaceOneModel<>(BsonService.getFilterForId(ent.getId()), ent.getDocument());
+
+		if(!ent.isDirty())
+			return null;
+
+		return new UpdateOneModel<>(BsonService.getFilterForId(ent.getId()), BsonService.generateEntityUpdate(ent));
+	}
+
+	/**
+	 * Same as toWriteModel, for a versioned entity: the write carries the next version, and only matches the document
+	 * if it's still at the version we loaded. The entity's own version is only bumped once the write goes through.
+	 * @param ent
+	 * @return
+	 */
+	private WriteModel<Document> toVersionedWriteModel(Entity ent) {
+		long next = ent.isNew() ? 1 : ent.getVersion() + 1;
+
+		if(ent.isNew() || !partialUpdates) {
+			Document doc = new Document(ent.getDocument());
+			doc.put(Entity.VERSION_FIELD, next);
+
+			if(ent.isNew())
+				return new InsertOneModel<>(doc);
+
+			return new ReplaceOneModel<>(BsonService.getFilterForVersion(ent.getId(), ent.getVersion()), doc);
+		}
+
+		if(!ent.isDirty())
+			return null;
+
+		Bson updates = Updates.combine(BsonService.generateEntityUpdate(ent), Updates.set(Entity.VERSION_FIELD, next));
+
+		return new UpdateOneModel<>(BsonService.getFilterForVersion(ent.getId(), ent.getVersion()), updates);
+	}
+
+	/**
+	 * Saving a versioned entity that already exists only goes through if it's still at the version we loaded.
+	 * A bulkWrite only reports how many of its updates matched, not which, so these writes are sent on their own
+	 * and checked with {@link #checkMatched(Entity, long)}.
+	 * @param ent
+	 * @return true if this entity's write has to be sent on its own.
+	 */
+	protected static boolean sendsAlone(Entity ent) {
+		return ent.isVersioned() && !ent.isNew();
+	}
+
+	/**
+	 * @param ent - the entity we just wrote
+	 * @param matched - how many documents its write matched
+	 * @return the conflict to report if a versioned save missed, otherwise null
+	 */
+	protected VersionConflictException checkMatched(Entity ent, long matched) {
+		if(matched == 0 && sendsAlone(ent))
+			return conflict(ent);
+
+		return null;
+	}
+
+	/**
+	 * A versioned save missed, so whatever we have for this entity is stale. Forget it, so a retry loads it fresh.
+	 * @param ent
+	 * @return the exception to report
+	 */
+	private VersionConflictException conflict(Entity ent) {
+		IdentityMap identityMap = getIdentityMap();
+
+		if(identityMap != null)
+			identityMap.remove(ent.getKey());
+
+		if(cache != null)
+			cache.invalidate(ent.getKey());
+
+		return new VersionConflictException(ent.getKey(), ent.getVersion());
+	}
+
+	/**
+	 * Updates that don't go through an entity still have to bump the version of a versioned type, or a save based on
+	 * the old version would overwrite them.
+	 * @param type
+	 * @param updates
+	 * @return
+	 */
+	protected Bson withVersionBump(String type, Bson updates) {
+		if(!isVersioned(type))
+			return updates;
+
+		return Updates.combine(updates, Updates.inc(Entity.VERSION_FIELD, 1));
+	}
+
+	/**
+	 * @param type
+	 * @return true if this type saves with optimistic locking. A collection with no Entity class behind it never does.
+	 */
+	protected boolean isVersioned(String type) {
+		try {
+			return entityService.getEntityType(type).isVersioned();
+		}
+		catch(IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	private static PutResult.Status statusOf(WriteModel<Document> model) {
+		if(model instanceof InsertOneModel)
+			return PutResult.Status.INSERTED;
+		if(model instanceof UpdateOneModel)
+			return PutResult.Status.UPDATED;
+		return PutResult.Status.REPLACED;
+	}
+
+	/**
+	 * Send a single write model on its own.
+	 * @param col
+	 * @param model
+	 * @return the number of documents it matched. An insert always matches 1.
+	 */
+	private long writeInternal(MongoCollection<Document> col, WriteModel<Document> model) {
+		ClientSession session = getSession();
+
+		if(model instanceof InsertOneModel<Document> insert) {
+			if(session == null)
+				col.insertOne(insert.getDocument());
+			else
+				col.insertOne(session, insert.getDocument());
+
+			return 1;
+		}
+		else if(model instanceof UpdateOneModel<Document> update) {
+			if(session == null)
+				return col.updateOne(update.getFilter(), update.getUpdate()).getMatchedCount();
+			else
+				return col.updateOne(session, update.getFilter(), update.getUpdate()).getMatchedCount();
+		}
+		else if(model instanceof ReplaceOneModel<Document> replace) {
+			if(session == null)
+				return col.replaceOne(replace.getFilter(), replace.getReplacement()).getMatchedCount();
+			else
+				return col.replaceOne(session, replace.getFilter(), replace.getReplacement()).getMatchedCount();
+		}
+		else
+			throw new IllegalArgumentException("Unsupported write model " + model);
+	}
+
+	/**
+	 * Bookkeeping once an entity has made it to the DB.
+	 * @param ent
+	 */
+	private void afterPut(Entity ent) {
+		//if the transaction doesn't commit, this entity has to be saved again
+		if(txInProgress()) {
+			ent.rememberForRollback();
+			local().savedInTx.add(ent);
+		}
+
+		if(ent.isVersioned())
+			ent.setVersion(ent.isNew() ? 1 : ent.getVersion() + 1);
+
+		ent.markSaved();
+
+		IdentityMap identityMap = getIdentityMap();
+
+		if(identityMap != null)
+			identityMap.put(ent);
+
+		invalidate(ent.getKey());
+
+		if(missingKeys != null)
+			missingKeys.invalidate(ent.getKey());
+	}
+
+	/**
+	 * Drop a key we just wrote from the shared cache. Inside a transaction other threads still read the old document
+	 * until it commits, and may cache it again, so we remember the key and drop it again in commitSaves.
+	 * @param key
+	 */
+	private void invalidate(Key key) {
+		if(cache != null)
+			cache.invalidate(key);
+
+		if(txInProgress())
+			local().keysWrittenInTx.add(key);
+	}
+
+	/**
+	 * Same as invalidate(Key), for writes where we can't tell which documents were touched.
+	 * @param type
+	 */
+	private void invalidateType(String type) {
+		if(cache != null)
+			cache.invalidateType(type);
+
+		if(txInProgress())
+			local().typesWrittenInTx.add(type);
+	}
+	
+	/**
+	 * Add to a numeric field on the server, in one round trip and without a transaction.
+	 * @param key
+	 * @param field
+	 * @param amount - negative to subtract
+	 * @return the entity after the increment, or null if it doesn't exist
+	 */
+	public <T extends Entity> T increment(Key key, String field, Number amount) {
+		return updateEntity(key, field, UpdateOperator.INC, amount);
+	}
+
+	/**
+	 * Apply an atomic update to a single entity. See {@link #updateEntity(Key, Query)}
+	 * @param key
+	 * @param field
+	 * @param op
+	 * @param value
+	 * @return the entity after the update, or null if it doesn't exist
+	 */
+	public <T extends Entity> T updateEntity(Key key, String field, UpdateOperator op, Object value) {
+		return updateEntity(key, new Query(key.getType()).addUpdate(field, op, value));
+	}
+
+	/**
+	 * Apply a query's updates to a single entity, in one round trip. The server applies them atomically, so this
+	 * needs no transaction: concurrent increments and list appends never overwrite each other.
+	 * The query's filters, if any, become conditions on the update, eg. only decrement stock while it's above 0.
+	 *
+	 * Copies of this entity already in memory aren't changed; use the one returned.
+	 * @param key
+	 * @param q - the updates, and any conditions. Its type is ignored.
+	 * @return the entity after the update, or null if it doesn't exist or didn't meet the conditions
+	 */
+	public <T extends Entity> T updateEntity(Key key, Query q) {
+		if(q.updates.isEmpty())
+			throw new IllegalArgumentException("This query has no updates");
+
+		flushUnitOfWork();
+
+		Bson filter = BsonService.getFilterForId(key.getId());
+
+		if(!q.filters.isEmpty())
+			filter = Filters.and(filter, BsonService.generateCompositeFilter(q.filters));
+
+		MongoCollection<RawBsonDocument> col = db.getCollection(key.getType(), RawBsonDocument.class);
+		FindOneAndUpdateOptions options = new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER);
+		Bson updates = withVersionBump(key.getType(), BsonService.generateUpdates(q.updates));
+
+		ClientSession session = getSession();
+		RawBsonDocument updated = session == null
+				? col.findOneAndUpdate(filter, updates, options)
+				: col.findOneAndUpdate(session, filter, updates, options);
+
+		invalidate(key);
+
+		if(updated == null)
+			return null;
+
+		T result = lazyDecoding
+				? entityService.buildLazyEntity(this, key.getType(), updated, null)
+				: entityService.buildEntity(this, key.getType(), BsonService.decode(updated));
+
+		IdentityMap identityMap = getIdentityMap();
+		if(identityMap != null)
+			identityMap.put(result);
+
+		return result;
+	}
+
+	public <T extends Entity> void deleteEntity(T ent) {
+		delete(ent.getKey());
+	}
+	
 	/**
 	 * Delete entities from the DB. This is the same as deleteEntity(Iterable)
 	 * @param entities
+	 * @return the number of documents deleted, per type
 	 */
-	public <T extends Entity> void deleteEntity(T...entities) {
-		deleteEntity(Arrays.asList(entities));
+	public <T extends Entity> Map<String, Long> deleteEntity(T...entities) {
+		return deleteEntity(Arrays.asList(entities));
 	}
 	
 	/**
 	 * Delete entities from the DB.
 	 * @param entities
+	 * @return the number of documents deleted, per type
 	 */
-	public <T extends Entity> void deleteEntity(Iterable<T> entities) {
+	public <T extends Entity> Map<String, Long> deleteEntity(Iterable<T> entities) {
 		List<Key> keys = getKeysFromEntities(entities);
 		
-		delete(keys);
+		return delete(keys);
 	}
 	
 	/**
@@ -302,6 +1387,13 @@ public class DBService{
 	 * @param key
 	 */
 	public void delete(Key key) {
+		UnitOfWork uow = local().unitOfWork;
+
+		if(uow != null) {
+			uow.registerDelete(key);
+			return;
+		}
+
 		MongoCollection<Document> col = db.getCollection(key.getType());
 		
 		deleteInternal(key, col);
@@ -309,88 +1401,552 @@ public class DBService{
 	/**
 	 * Delete a collection of entities by their key. This is the same as delete(Iterable)
 	 * @param keys
+	 * @return the number of documents deleted, per type
 	 */
-	public void delete(Key...keys) {
-		delete(Arrays.asList(keys));
+	public Map<String, Long> delete(Key...keys) {
+		return delete(Arrays.asList(keys));
 	}
 	/**
 	 * Delete a collection of entities by their key.
+	 * Each collection is cleared with a single deleteMany on _id, split into chunks of {@link #getDeleteChunkSize()} keys.
 	 * @param keys
+	 * @return the number of documents deleted, per type. In a unit of work, the number of keys scheduled for deletion.
 	 */
-	public void delete(Iterable<Key>... keys) {
+	public Map<String, Long> delete(Iterable<Key>... keys) {
+		Map<String, Long> result = new HashMap<>();
+
+		UnitOfWork uow = local().unitOfWork;
 
 		for(var v : keys){
+			if(uow != null) {
+				for(Key key : v) {
+					//skipped the same way sortKeysByType skips them outside a unit of work
+					if(key == null)
+						continue;
+
+					uow.registerDelete(key);
+					result.merge(key.getType(), 1L, Long::sum);
+				}
+				continue;
+			}
+
 			Map<String, List<Key>> sorted = sortKeysByType(v);
 
 			for(Entry<String, List<Key>> entry : sorted.entrySet()) {
 				MongoCollection<Document> col = db.getCollection(entry.getKey());
+				List<Key> all = entry.getValue();
+
+				long deleted = 0;
 
-				for(Key key : entry.getValue())
-					deleteInternal(key, col);
+				for(int i = 0; i < all.size(); i += deleteChunkSize)
+					deleted += deleteManyInternal(all.subList(i, Math.min(i + deleteChunkSize, all.size())), col);
+
+				result.merge(entry.getKey(), deleted, Long::sum);
 			}
 		}
+
+		return result;
+	}
+
+	public static final int DEFAULT_DELETE_CHUNK_SIZE = 10000;
+
+	private volatile int deleteChunkSize = DEFAULT_DELETE_CHUNK_SIZE;
+
+	/**
+	 * @return the most keys we'll put in a single deleteMany.
+	 */
+	public int getDeleteChunkSize(){
+		return deleteChunkSize;
+	}
+
+	public void setDeleteChunkSize(int size){
+		if(size < 1)
+			throw new IllegalArgumentException("Delete chunk size must be positive, got " + size);
+
+		deleteChunkSize = size;
+	}
+	
+	/**
+	 * Delete a key from the DB
+	 * @param key
+	 * @param col
+	 */
+	private void deleteInternal(Key key, MongoCollection<Document> col) {
+		ClientSession session = getSession();
+		Bson filter = BsonService.getFilterForId(key.getId());
+
+		if(session == null)
+			col.deleteOne(filter);
+		else
+			col.deleteOne(session, filter);
+
+		afterDelete(key);
+	}
+
+	/**
+	 * Delete a batch of keys from the DB in a single round trip. All of the keys must belong to col.
+	 * @param keys
+	 * @param col
+	 * @return the number of documents deleted
+	 */
+	private long deleteManyInternal(List<Key> keys, MongoCollection<Document> col) {
+		long deleted = deleteManyInternal(col, BsonService.getFilterForIds(keys));
+
+		for(Key key : keys)
+			afterDelete(key);
+
+		return deleted;
+	}
+
+	/**
+	 * Bookkeeping once a key has been deleted from the DB.
+	 * @param key
+	 */
+	private void afterDelete(Key key) {
+		IdentityMap identityMap = getIdentityMap();
+
+		if(identityMap != null)
+			identityMap.remove(key);
+
+		invalidate(key);
+	}
+	
+	/**
+	 * Fetch a list of entities from a list of keys.
+	 * 
+	 * All of these entities will not *necessarily* be the same type. You will need to cast to the appropriate type.
+	 * The result follows the order of the given keys. Keys that don't exist are left out, and so are repeats.
+	 * If an identity map is running, keys we've already loaded are served from it.
+	 * If parallel fetch is on, see {@link #setParallelFetch(boolean)}, this is the same as {@link #getEntitiesParallel(Iterable)}
+	 * @param keys
+	 * @return
+	 */
+	public <T extends Entity> List<T> getEntities(Iterable<Key> keys){
+		return getEntitiesInternal(keys, parallelFetch);
+	}
+
+	/**
+	 * Same as {@link #getEntities(Iterable)}, also loading the entities referenced by the given fields.
+	 * See {@link #prefetch(Iterable, String...)}
+	 * @param keys
+	 * @param includes - the reference paths to load
+	 * @return
+	 */
+	public <T extends Entity> List<T> getEntities(Iterable<Key> keys, String... includes){
+		List<T> result = getEntities(keys);
+
+		prefetch(result, includes);
+
+		return result;
+	}
+
+	/**
+	 * Load everything the given entities reference through these fields, with one $in per referenced type instead of
+	 * one lookup per reference. The loaded entities are attached to the entities that reference them, so
+	 * getEntityFromKeyValue and getReferencedEntityList are then served from memory.
+	 *
+	 * A path can go through embedded documents and lists, eg. "inventory.items". It ends at a Key or a list of Keys.
+	 * To follow references of references, prefetch the returned entities: prefetch(prefetch(members, "character"), "guild")
+	 * @param entities
+	 * @param paths
+	 * @return every entity we loaded
+	 */
+	public <T extends Entity> List<Entity> prefetch(Iterable<T> entities, String... paths){
+		if(paths.length == 0)
+			return new ArrayList<>();
+
+		Set<Key> keys = new LinkedHashSet<>();
+
+		for(String path : paths) {
+			String[] parts = path.split("\\.");
+
+			for(T ent : entities)
+				collectKeys(ent.getValue(parts[0]), parts, 1, keys);
+		}
+
+		Map<Key, Entity> loaded = new HashMap<>();
+
+		//anything we don't find doesn't exist, which is worth remembering too
+		for(Key key : keys)
+			loaded.put(key, null);
+
+		List<Entity> found = getEntities(keys);
+
+		for(Entity ent : found)
+			loaded.put(ent.getKey(), ent);
+
+		for(T ent : entities)
+			ent.attachReferences(loaded);
+
+		return found;
+	}
+
+	/**
+	 * Walk a path down through embedded documents and lists, collecting the keys at its end.
+	 */
+	private static void collectKeys(Object value, String[] path, int index, Set<Key> into){
+		if(value instanceof List<?> list) {
+			for(Object o : list)
+				collectKeys(o, path, index, into);
+			return;
+		}
+
+		if(!(value instanceof Document doc))
+			return;
+
+		if(index < path.length) {
+			collectKeys(doc.get(path[index]), path, index + 1, into);
+			return;
+		}
+
+		if(doc.get("type") instanceof String && doc.get("id") instanceof String)
+			into.add(new Key(doc));
+	}
+
+	/**
+	 * Same as {@link #getEntities(Iterable)}, but every collection is queried at the same time on its own thread
+	 * (a virtual thread, where the JVM has them). Loading several types then costs roughly the latency of the slowest one.
+	 *
+	 * Inside a transaction this falls back to querying one collection at a time, since the session can't be shared.
+	 * @param keys
+	 * @return
+	 */
+	public <T extends Entity> List<T> getEntitiesParallel(Iterable<Key> keys){
+		return getEntitiesInternal(keys, true);
+	}
+
+	private volatile boolean parallelFetch = false;
+
+	/**
+	 * @param parallel - if true, getEntities always queries its collections at the same time.
+	 */
+	public void setParallelFetch(boolean parallel){
+		parallelFetch = parallel;
+	}
+
+	private volatile ExecutorService parallelExecutor = null;
+
+	/**
+	 * Choose where parallel fetches run. By default, we use a shared virtual thread executor when the JVM supports it,
+	 * and a cached pool of daemon threads when it doesn't.
+	 * @param executor - the executor, or null to go back to the default
+	 */
+	public void setParallelExecutor(ExecutorService executor){
+		parallelExecutor = executor;
+	}
+
+	private <T extends Entity> List<T> getEntitiesInternal(Iterable<Key> keys, boolean parallel){
+		EntityCache cache = readableCache();
+		MissingKeyCache missingKeys = readableMissingKeys();
+		IdentityMap identityMap = getIdentityMap();
+		UnitOfWork uow = local().unitOfWork;
+
+		Set<Key> ordered = new LinkedHashSet<>();
+		Map<Key, T> found = new HashMap<>();
+		Map<String, List<Key>> missing = new HashMap<>();
+
+		for(Key key : keys) {
+			if(key == null || !ordered.add(key))
+				continue;
+
+			if(uow != null && uow.isPendingDelete(key))
+				continue;
+
+			T pending = uow == null ? null : uow.getPendingSave(key);
+			if(pending != null) {
+				found.put(key, pending);
+				continue;
+			}
+
+			if(identityMap != null && identityMap.contains(key)) {
+				found.put(key, identityMap.get(key));
+				continue;
+			}
+
+			Document cached = cache == null ? null : cache.get(key);
+			if(cached != null) {
+				T ent = entityService.buildEntity(this, key.getType(), cached);
+
+				if(identityMap != null)
+					identityMap.put(ent);
+
+				found.put(key, ent);
+				continue;
+			}
+
+			if(missingKeys != null && missingKeys.isMissing(key))
+				continue;
+
+			List<Key> current = missing.get(key.getType());
+			if(current == null) current = new ArrayList<>();
+
+			current.add(key);
+
+			missing.put(key.getType(), current);
+		}
+
+		//taken before the fetch, so a write that lands while it's running keeps what we read out of the caches
+		long stamp = cache == null ? 0 : cache.stamp();
+		long missingStamp = missingKeys == null ? 0 : missingKeys.stamp();
+
+		Map<String, List<Document>> fetched;
+
+		if(parallel && missing.size() > 1 && !txInProgress())
+			fetched = fetchByIdParallel(missing);
+		else
+			fetched = fetchById(missing);
+
+		for(Entry<String, List<Document>> entry : fetched.entrySet()) {
+			for(Document doc : entry.getValue()) {
+				T ent = entityService.buildEntity(this, entry.getKey(), doc);
+
+				if(cache != null)
+					cache.put(ent.getKey(), doc, stamp);
+
+				if(identityMap != null)
+					identityMap.put(ent);
+
+				found.put(ent.getKey(), ent);
+			}
+		}
+
+		if(missingKeys != null) {
+			for(List<Key> requested : missing.values()) {
+				for(Key key : requested) {
+					if(!found.containsKey(key))
+						missingKeys.markMissing(key, missingStamp);
+				}
+			}
+		}
+
+		List<T> result = new ArrayList<>();
+
+		for(Key key : ordered) {
+			T ent = found.get(key);
+
+			if(ent != null)
+				result.add(ent);
+		}
+		
+		return result;
+	}
+
+	/**
+	 * Run one find(_id $in) per type, one after the other.
+	 * @param keys - the keys to fetch, sorted by type
+	 * @return the documents we found, by type
+	 */
+	private Map<String, List<Document>> fetchById(Map<String, List<Key>> keys){
+		Map<String, List<Document>> result = new HashMap<>();
+
+		for(Entry<String, List<Key>> entry : keys.entrySet())
+			result.put(entry.getKey(), fetchRawInternal(entry.getKey(), BsonService.getFilterForIds(entry.getValue()), null));
+
+		return result;
+	}
+
+	/**
+	 * Run one find(_id $in) per type, all at the same time. These don't use the session, so this must not be called
+	 * inside a transaction.
+	 * @param keys - the keys to fetch, sorted by type
+	 * @return the documents we found, by type
+	 */
+	private Map<String, List<Document>> fetchByIdParallel(Map<String, List<Key>> keys){
+		ExecutorService executor = parallelExecutor == null ? getDefaultParallelExecutor() : parallelExecutor;
+
+		Map<String, Future<List<Document>>> pending = new HashMap<>();
+
+		for(Entry<String, List<Key>> entry : keys.entrySet()) {
+			MongoCollection<Document> col = db.getCollection(entry.getKey());
+			Bson filter = BsonService.getFilterForIds(entry.getValue());
+
+			pending.put(entry.getKey(), executor.submit(() -> col.find(filter).into(new ArrayList<>())));
+		}
+
+		Map<String, List<Document>> result = new HashMap<>();
+
+		try{
+			for(Entry<String, Future<List<Document>>> entry : pending.entrySet())
+				result.put(entry.getKey(), entry.getValue().get());
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while fetching entities", e);
+		}
+		catch(ExecutionException e){
+			if(e.getCause() instanceof RuntimeException cause)
+				throw cause;
+			throw new IllegalStateException(e.getCause());
+		}
+		finally{
+			for(Future<List<Document>> f : pending.values())
+				f.cancel(true);
+		}
+
+		return result;
+	}
+
+	private static ExecutorService defaultParallelExecutor = null;
+
+	private static synchronized ExecutorService getDefaultParallelExecutor(){
+		if(defaultParallelExecutor != null)
+			return defaultParallelExecutor;
+
+		//we compile against an older release, so look virtual threads up reflectively
+		try{
+			defaultParallelExecutor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch(ReflectiveOperationException e){
+			defaultParallelExecutor = Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "DBService-fetch");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+
+		return defaultParallelExecutor;
+	}
+
+	public <T extends Entity> T getEntity(String type, String id){
+		return getEntity(new Key(type, id));
 	}
 	
 	/**
-	 * Delete a key from the DB
+	 * Fetch a single entity from a key.
 	 * @param key
-	 * @param col
-	 */
-	private void deleteInternal(Key key, MongoCollection<Document> col) {
-		col.deleteOne(session, BsonService.getFilterForId(key.getId()));
-	}
-	
-	/**
-	 * Fetch a list of entities from a list of keys.
-	 * 
-	 * All of these entities will not *necessarily* be the same type. You will need to cast to the appropriate type.
-	 * @param keys
 	 * @return
 	 */
-	public <T extends Entity> List<T> getEntities(Iterable<Key> keys){
-		List<T> result = new ArrayList<>();
+	public <T extends Entity> T getEntity(Key key) {
 
-		Map<String, List<Key>> sorted = sortKeysByType(keys);
+		UnitOfWork uow = local().unitOfWork;
 
-		for(Entry<String, List<Key>> entry : sorted.entrySet()) {
-			String type = entry.getKey();
-			List<ObjectId> ids = new ArrayList<>();
+		if(uow != null) {
+			if(uow.isPendingDelete(key))
+				return null;
 
-			for(Key key : entry.getValue()) 
-				ids.add(new ObjectId(key.getId()));
-			
-			Bson filter = Filters.in("_id", ids);
-			
-			MongoCollection<Document> col = db.getCollection(type);
-			
-			for(Document doc : col.find(session, filter)) {
-				result.add(entityService.buildEntity(this, type, doc));
-			}
+			T pending = uow.getPendingSave(key);
+
+			if(pending != null)
+				return pending;
+		}
+
+		IdentityMap identityMap = getIdentityMap();
+
+		if(identityMap != null && identityMap.contains(key))
+			return identityMap.get(key);
+
+		EntityCache cache = readableCache();
+		Document doc = cache == null ? null : cache.get(key);
+
+		if(doc == null) {
+			MissingKeyCache missingKeys = readableMissingKeys();
+
+			if(missingKeys != null && missingKeys.isMissing(key))
+				return null;
+
+			//a caller that joins a shared read didn't stamp before it started, so the one that sends it fills the caches
+			RawBsonDocument found = singleFlight && !txInProgress()
+					? entityFlights.run(key, () -> fetchAndCache(key, cache, missingKeys))
+					: fetchAndCache(key, cache, missingKeys);
+
+			if(found == null)
+				return null;
+
+			doc = BsonService.decode(found);
 		}
 		
+		T result = entityService.buildEntity(this, key.getType(), doc);
+
+		if(identityMap != null)
+			identityMap.put(result);
+
 		return result;
 	}
 
-	public <T extends Entity> T getEntity(String type, String id){
-		return getEntity(new Key(type, id));
+	/**
+	 * Load a single document and cache it (or that it's missing), unless it was written while we were loading it.
+	 * @param key
+	 * @param cache - the cache to fill. This can be null.
+	 * @param missingKeys - where to remember that it's missing. This can be null.
+	 * @return the document, or null if it doesn't exist
+	 */
+	private RawBsonDocument fetchAndCache(Key key, EntityCache cache, MissingKeyCache missingKeys) {
+		long stamp = cache == null ? 0 : cache.stamp();
+		long missingStamp = missingKeys == null ? 0 : missingKeys.stamp();
+
+		RawBsonDocument found = fetchOne(key);
+
+		if(found == null) {
+			if(missingKeys != null)
+				missingKeys.markMissing(key, missingStamp);
+		}
+		else if(cache != null)
+			cache.put(key, found, stamp);
+
+		return found;
 	}
-	
+
 	/**
-	 * Fetch a single entity from a key.
+	 * Load a single document, through the batcher when it's on.
+	 * It comes back raw, so it can be shared between callers; each one decodes its own copy.
 	 * @param key
-	 * @return
+	 * @return the document, or null if it doesn't exist
 	 */
-	public <T extends Entity> T getEntity(Key key) {
-		
-		List<Document> docs = fetchRawInternal(key.getType(), BsonService.getFilterForId(key.getId()), null);
+	private RawBsonDocument fetchOne(Key key) {
+		KeyBatcher batcher = this.batcher;
+
+		if(batcher != null && !txInProgress()) {
+			try{
+				return batcher.load(key).join();
+			}
+			catch(CompletionException e){
+				if(e.getCause() instanceof RuntimeException cause)
+					throw cause;
+				throw e;
+			}
+		}
+
+		List<RawBsonDocument> docs = findInternal(key.getType(), BsonService.getFilterForId(key.getId()), null, RawBsonDocument.class).into(new ArrayList<>());
 
 		if(docs.size() == 0)
 			return null;
-		
+
 		if(docs.size() != 1)
 			throw new IllegalStateException("cant have multiple docs with the same identifier. delete this project.");
-		
-		return entityService.buildEntity(this, key.getType(), docs.get(0));
+
+		return docs.get(0);
+	}
+
+	private volatile KeyBatcher batcher = null;
+
+	/**
+	 * Batch getEntity lookups across threads. Instead of each lookup sending its own find, keys are collected for up to
+	 * windowMicros (or until maxBatchSize of them are waiting) and loaded with one find(_id $in) per type.
+	 * Each caller still blocks until its own entity is back, so calling code doesn't change.
+	 *
+	 * This trades a little latency for throughput, so it only pays off when many threads look up entities at once.
+	 * Lookups inside a transaction are never batched.
+	 * @param windowMicros - the longest a lookup waits for others to join it
+	 * @param maxBatchSize - send a batch as soon as this many keys are waiting
+	 */
+	public synchronized void enableGetBatching(long windowMicros, int maxBatchSize){
+		if(windowMicros < 1 || maxBatchSize < 1)
+			throw new IllegalArgumentException("Batch window and size must be positive, got " + windowMicros + " and " + maxBatchSize);
+
+		disableGetBatching();
+
+		batcher = new KeyBatcher(db, windowMicros, maxBatchSize, parallelExecutor == null ? getDefaultParallelExecutor() : parallelExecutor);
+	}
+
+	/**
+	 * Go back to sending each getEntity on its own. Anything already waiting is sent right away.
+	 */
+	public synchronized void disableGetBatching(){
+		KeyBatcher current = batcher;
+		batcher = null;
+
+		if(current != null)
+			current.shutdown();
 	}
 
 	/**
@@ -398,8 +1954,22 @@ public class DBService{
 	 * @return true if an entity already exists for the given key.
 	 */
 	public boolean entityExists(Key key){
+		flushUnitOfWork();
+
+		MissingKeyCache missingKeys = readableMissingKeys();
+
+		if(missingKeys != null && missingKeys.isMissing(key))
+			return false;
+
+		long stamp = missingKeys == null ? 0 : missingKeys.stamp();
+
 		MongoCollection<Document> collection = db.getCollection(key.getType());
-		return collection.countDocuments(session, BsonService.getFilterForId(key.getId())) == 0;
+		boolean exists = countInternal(collection, BsonService.getFilterForId(key.getId()), new CountOptions().limit(1)) > 0;
+
+		if(!exists && missingKeys != null)
+			missingKeys.markMissing(key, stamp);
+
+		return exists;
 	}
 	
 	/**
@@ -421,19 +1991,43 @@ public class DBService{
 	 * @return
 	 */
 	protected <T extends Entity> List<T> fetchInternal(String type, Bson filter, Set<String> projections){
-		
-		Bson composedProj = BsonService.generateProjections(projections);
-		
-		List<Document> rawList = fetchRawInternal(type, filter, composedProj);
+		flushUnitOfWork();
+
+		FindIterable<?> find = findInternal(type, filter, projectionFor(type, projections), scanClass(type, projections));
+
+		return drain(iterateInternal(type, find, projections));
+	}
+
+	/**
+	 * Build every entity an iterator has left, then close it.
+	 * @param it
+	 * @return
+	 */
+	private <T extends Entity> List<T> drain(EntityIterator<T> it){
 		List<T> result = new ArrayList<>();
-		
-		for(Document doc : rawList) {
-			result.add(entityService.buildEntity(this, type, doc));
+
+		try(it){
+			while(it.hasNext())
+				result.add(it.next());
 		}
 		
 		return result;
 	}
 
+	/**
+	 * Opens a cursor and wraps it in an iterator that builds entities as they are read.
+	 * @param type - the entity type we're fetching
+	 * @param find - the find we're running. It can read entities, Documents, or RawBsonDocuments (decoded lazily).
+	 * @param projections - a set of the fields we're projection. This can be null.
+	 * @return
+	 */
+	protected <T extends Entity> EntityIterator<T> iterateInternal(String type, FindIterable<?> find, Set<String> projections){
+		if(projections == null || projections.isEmpty())
+			projections = null;
+
+		return new EntityIterator<>(this, type, projections, find.iterator());
+	}
+
 
 
 	private List<Document> fetchRawInternal(String collection, Bson filter, Bson projections){
@@ -450,10 +2044,8 @@ public class DBService{
 	private List<Document> fetchRawInternal(String collection, Bson filter, Bson projections, int limit) {
 		List<Document> result = new ArrayList<>();
 
-		MongoCollection<Document> col = db.getCollection(collection);
-
 		//I think this is better???
-		try(MongoCursor<Document> test = col.find(filter).projection(projections).limit(limit).iterator()){
+		try(MongoCursor<Document> test = findInternal(collection, filter, projections).limit(limit).iterator()){
 			while(test.hasNext()){
 				result.add(test.next());
 			}
@@ -462,6 +2054,144 @@ public class DBService{
 		return result;
 	}
 
+	/**
+	 * The start of every find we run.
+	 * @param collection - the type of entity
+	 * @param filter - the composed Bson filters
+	 * @param projections - the composed Bson projections. This can be null.
+	 * @return
+	 */
+	private FindIterable<Document> findInternal(String collection, Bson filter, Bson projections) {
+		return findInternal(collection, filter, projections, Document.class);
+	}
+
+	/**
+	 * The start of every find we run.
+	 * @param collection - the type of entity
+	 * @param filter - the composed Bson filters
+	 * @param projections - the composed Bson projections. This can be null.
+	 * @param docClass - what each result is decoded into
+	 * @return
+	 */
+	private <D> FindIterable<D> findInternal(String collection, Bson filter, Bson projections, Class<D> docClass) {
+		MongoCollection<Document> col = db.getCollection(collection);
+
+		ClientSession session = getSession();
+
+		if(session == null)
+			return col.find(filter, docClass).projection(projections);
+
+		return col.find(session, filter, docClass).projection(projections);
+	}
+
+	private volatile boolean lazyDecoding = false;
+
+	/**
+	 * Choose how entities read by queries are decoded.
+	 * By default, every document is decoded in full as it comes off the cursor. With lazy decoding, each entity keeps
+	 * its raw bytes and only decodes the fields that are actually read, switching to a decoded document the first
+	 * time it's modified. This saves a lot of work when scanning wide documents for a few fields.
+	 *
+	 * Subclasses that read raw directly must go through {@link Entity#getDocument()} instead, or they'll find it null.
+	 * @param lazy
+	 */
+	public void setLazyDecoding(boolean lazy){
+		lazyDecoding = lazy;
+	}
+
+	public boolean usesLazyDecoding(){
+		return lazyDecoding;
+	}
+
+	/**
+	 * Compose the projection for a type. A versioned type always brings its version along, or a projected entity of
+	 * it could never be saved without conflicting.
+	 * @param type - the entity type we're scanning
+	 * @param projections - a set of the fields we're projection. This can be null.
+	 * @return the composed bson projections, or null if there are none
+	 */
+	protected Bson projectionFor(String type, Set<String> projections){
+		if(projections == null || projections.isEmpty() || projections.contains(Entity.VERSION_FIELD) || !isVersioned(type))
+			return BsonService.generateProjections(projections);
+
+		Set<String> withVersion = new LinkedHashSet<>(projections);
+		withVersion.add(Entity.VERSION_FIELD);
+
+		return BsonService.generateProjections(withVersion);
+	}
+
+	/**
+	 * @param type - the entity type we're scanning
+	 * @param projections - a set of the fields we're projection. This can be null.
+	 * @return what query results are decoded into
+	 */
+	private Class<?> scanClass(String type, Set<String> projections){
+		if(lazyDecoding)
+			return RawBsonDocument.class;
+
+		//the codec can't tell an entity which fields it was projected to
+		if(projections != null && !projections.isEmpty())
+			return Document.class;
+
+		return entityService.getEntityClass(type);
+	}
+
+	/**
+	 * Turn a query into a find, including its sort, keyset position, skip, limit and batch size.
+	 * @param q
+	 * @return
+	 */
+	private FindIterable<?> findInternal(Query q) {
+		return findInternal(q, scanClass(q.getType(), q.projections));
+	}
+
+	/**
+	 * Turn a query into a find, including its sort, keyset position, skip, limit and batch size.
+	 * @param q
+	 * @param docClass - what each result is decoded into
+	 * @return
+	 */
+	private <D> FindIterable<D> findInternal(Query q, Class<D> docClass) {
+		return findInternal(q.getType(), BsonService.generateQueryFilter(q), projectionFor(q.getType(), q.projections),
+				BsonService.generateSort(q.sorts), q.getSkip(), q.getLimit(), q.getBatchSize(), docClass);
+	}
+
+	/**
+	 * Same as {@link #findInternal(Query, Class)}, for a prepared query.
+	 */
+	private <D> FindIterable<D> findInternal(BoundQuery q, Class<D> docClass) {
+		PreparedQuery p = q.getPrepared();
+
+		//the prepared projection doesn't know whether the type is versioned
+		Bson projection = isVersioned(p.getType()) ? projectionFor(p.getType(), p.getProjections()) : p.getProjection();
+
+		return findInternal(p.getType(), q.filter(), projection, p.getSort(), p.getSkip(), p.getLimit(), p.getBatchSize(), docClass);
+	}
+
+	/**
+	 * @param sort - the composed Bson sort. This can be null.
+	 * @param skip - 0 for none
+	 * @param limit - 0 for none
+	 * @param batchSize - 0 leaves it up to the driver
+	 */
+	private <D> FindIterable<D> findInternal(String type, Bson filter, Bson projections, Bson sort, int skip, int limit, int batchSize, Class<D> docClass) {
+		FindIterable<D> find = findInternal(type, filter, projections, docClass);
+
+		if(sort != null)
+			find.sort(sort);
+
+		if(skip > 0)
+			find.skip(skip);
+
+		if(limit > 0)
+			find.limit(limit);
+
+		if(batchSize > 0)
+			find.batchSize(batchSize);
+
+		return find;
+	}
+
 	/**
 	 *
 	 *
@@ -479,12 +2209,105 @@ public class DBService{
 	 * queries
 	 */
 	public <T extends Entity> List<T> runEntityQuery(Query q){
-		Bson filter = BsonService.generateCompositeFilter(q.filters);
-
 		//Iris.debug("---Running query---");
-		//Iris.debug(filter.toString());
 
-		return fetchInternal(q.getType(), filter, q.projections);
+		List<T> result = singleFlight && !txInProgress() ? runSharedQuery(q) : drain(iterateEntityQuery(q));
+
+		if(!q.includes.isEmpty())
+			prefetch(result, q.includes.toArray(new String[0]));
+
+		return result;
+	}
+
+	/**
+	 * Run a query, sharing the round trip with any identical query already in flight. See {@link #setSingleFlight(boolean)}
+	 * Every caller builds its own entities from the shared documents.
+	 */
+	private <T extends Entity> List<T> runSharedQuery(Query q){
+		Bson sort = BsonService.generateSort(q.sorts);
+		Bson projections = projectionFor(q.getType(), q.projections);
+
+		//two queries are the same read if they'd send the same find
+		List<Object> shape = Arrays.asList(
+				q.getType(),
+				BsonService.generateQueryFilter(q).toBsonDocument(),
+				projections == null ? null : projections.toBsonDocument(),
+				sort == null ? null : sort.toBsonDocument(),
+				q.getSkip(),
+				q.getLimit());
+
+		return runSharedQuery(q.getType(), shape, () -> findInternal(q, RawBsonDocument.class), q.projections.isEmpty() ? null : q.projections);
+	}
+
+	/**
+	 * @param shape - equal for any two finds that would return the same documents
+	 * @param find - starts the find, if no identical one is in flight
+	 * @param projected - the projected fields. This can be null.
+	 */
+	private <T extends Entity> List<T> runSharedQuery(String typeName, List<Object> shape, Supplier<FindIterable<RawBsonDocument>> find, Set<String> projected){
+		List<RawBsonDocument> docs = queryFlights.run(shape, () -> find.get().into(new ArrayList<>()));
+
+		EntityType<T> type = entityService.getEntityType(typeName);
+
+		List<T> result = new ArrayList<>();
+
+		for(RawBsonDocument doc : docs) {
+			if(lazyDecoding)
+				result.add(entityService.buildLazyEntity(this, type, doc, projected));
+			else
+				result.add(entityService.createEntityObject(this, type, BsonService.decode(doc), false, projected));
+		}
+
+		return result;
+	}
+
+	private final SingleFlight<Key, RawBsonDocument> entityFlights = new SingleFlight<>();
+	private final SingleFlight<List<Object>, List<RawBsonDocument>> queryFlights = new SingleFlight<>();
+
+	private volatile boolean singleFlight = false;
+
+	/**
+	 * Coalesce identical reads. While on, threads that call getEntity for the same key, or runEntityQuery for the same
+	 * query, at the same time share a single round trip instead of each sending their own. A cache stampede on a popular
+	 * entity then costs one read instead of hundreds.
+	 *
+	 * A caller may be handed the result of a read that started just before it, so a thread can miss a write another
+	 * thread made a moment ago. Reads inside a transaction are never shared.
+	 * @param enabled
+	 */
+	public void setSingleFlight(boolean enabled){
+		singleFlight = enabled;
+	}
+
+	public boolean usesSingleFlight(){
+		return singleFlight;
+	}
+
+	/**
+	 * Run a query, building each entity only as it is read from the cursor. See {@link Query#setBatchSize(int)}
+	 * The iterator holds a cursor open on the server, so it must be closed.
+	 * @param q
+	 * @return
+	 */
+	public <T extends Entity> EntityIterator<T> iterateEntityQuery(Query q){
+		flushUnitOfWork();
+
+		return iterateInternal(q.getType(), findInternal(q), q.projections);
+	}
+
+	/**
+	 * Same as {@link #iterateEntityQuery(Query)}, as a Stream. Closing the stream closes the cursor,
+	 * so use try-with-resources.
+	 * @param q
+	 * @return
+	 */
+	public <T extends Entity> Stream<T> streamEntityQuery(Query q){
+		return stream(iterateEntityQuery(q));
+	}
+
+	private static <T extends Entity> Stream<T> stream(EntityIterator<T> it){
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(it::close);
 	}
 
 	public void runDeleteQuery(Query... queries){
@@ -494,21 +2317,126 @@ public class DBService{
 	}
 
 	public void runDeleteQuery(Query q) {
-		Bson filter = BsonService.generateCompositeFilter(q.filters);
+		runDeleteInternal(q.getType(), BsonService.generateQueryFilter(q));
+	}
+
+	private void runDeleteInternal(String type, Bson filter) {
+		flushUnitOfWork();
+
+		deleteManyInternal(db.getCollection(type), filter);
 
-		db.getCollection(q.getType()).deleteMany(session, filter);
+		//we can't tell which documents matched, so forget the whole type
+		IdentityMap identityMap = getIdentityMap();
+		if(identityMap != null)
+			identityMap.removeType(type);
+
+		invalidateType(type);
 
 	}
 	public void runUpdate(Query q) {
-		Bson filters = BsonService.generateCompositeFilter(q.filters);
-		Bson updates = BsonService.generateUpdates(q.updates);
+		runUpdateInternal(q.getType(), BsonService.generateQueryFilter(q), BsonService.generateUpdates(q.updates));
+	}
+
+	private void runUpdateInternal(String type, Bson filters, Bson updates) {
+		flushUnitOfWork();
+
+		updates = withVersionBump(type, updates);
 
-		db.getCollection(q.getType()).updateMany(session, filters, updates);
+		MongoCollection<Document> col = db.getCollection(type);
+		ClientSession session = getSession();
+
+		if(session == null)
+			col.updateMany(filters, updates);
+		else
+			col.updateMany(session, filters, updates);
+
+		invalidateType(type);
 	}
 	public Long runCount(Query q) {
-		Bson filters = BsonService.generateCompositeFilter(q.filters);
+		flushUnitOfWork();
+
+		Bson filters = BsonService.generateQueryFilter(q);
+
+		return countInternal(db.getCollection(q.getType()), filters, new CountOptions());
+	}
+
+	/**
+	 *
+	 *
+	 *
+	 *
+	 *
+	 *
+	 *
+	 *
+	 *
+	 *
+	 *
+	 *
+	 *
+	 * prepared queries. See {@link Query#prepare()}
+	 * Each of these does the same as its Query counterpart, without building any Bson.
+	 */
+	public <T extends Entity> List<T> runEntityQuery(BoundQuery q){
+		PreparedQuery p = q.getPrepared();
+
+		List<T> result = singleFlight && !txInProgress()
+				? runSharedQuery(p.getType(), q.shape(), () -> findInternal(q, RawBsonDocument.class), p.getProjections())
+				: drain(iterateEntityQuery(q));
+
+		if(p.getIncludes().length > 0)
+			prefetch(result, p.getIncludes());
+
+		return result;
+	}
+
+	public <T extends Entity> EntityIterator<T> iterateEntityQuery(BoundQuery q){
+		flushUnitOfWork();
+
+		PreparedQuery p = q.getPrepared();
+
+		return iterateInternal(p.getType(), findInternal(q, scanClass(p.getType(), p.getProjections())), p.getProjections());
+	}
+
+	public <T extends Entity> Stream<T> streamEntityQuery(BoundQuery q){
+		return stream(iterateEntityQuery(q));
+	}
+
+	public void runDeleteQuery(BoundQuery q) {
+		runDeleteInternal(q.getType(), q.filter());
+	}
+
+	public void runUpdate(BoundQuery q) {
+		Bson updates = q.update();
+
+		if(updates == null)
+			throw new IllegalArgumentException("This query has no updates");
+
+		runUpdateInternal(q.getType(), q.filter(), updates);
+	}
+
+	public Long runCount(BoundQuery q) {
+		flushUnitOfWork();
+
+		return countInternal(db.getCollection(q.getType()), q.filter(), new CountOptions());
+	}
+
+	private long countInternal(MongoCollection<Document> col, Bson filter, CountOptions options) {
+		ClientSession session = getSession();
+
+		if(session == null)
+			return col.countDocuments(filter, options);
+
+		return col.countDocuments(session, filter, options);
+	}
+
+	private long deleteManyInternal(MongoCollection<Document> col, Bson filter) {
+		ClientSession session = getSession();
+
+		if(session == null)
+			return col.deleteMany(filter).getDeletedCount();
 
-		return db.getCollection(q.getType()).countDocuments(session, filters);
+		return col.deleteMany(session, filter).getDeletedCount();
 	}
 
 
@@ -554,7 +2482,7 @@ public class DBService{
 		List<Document> result = new ArrayList<>();
 		
 		for(Entity ent : entities) 
-			result.add(ent.raw);
+			result.add(ent.getDocument());
 		
 		return result;
 	}
@@ -6,6 +6,7 @@ import java.util.function.Consumer;
 import java.util.function.Function;
 
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.types.Binary;
 import org.bson.types.ObjectId;
 
@@ -22,13 +23,29 @@ import io.vertx.core.json.JsonObject;
  *
  */
 public abstract class Entity implements Cloneable {
+
+	/**
+	 * Where a versioned entity keeps its version. See {@link #isVersioned()}
+	 */
+	public static final String VERSION_FIELD = "_v";
+
 	protected DBService db;
-	protected Document raw;
+	protected Document raw; //null while this entity is lazily decoded; see getDocument()
 	private Key key;
+
+	private RawBsonDocument source = null; //the undecoded document, until something needs all of it
+
+	//referenced entities loaded ahead of time; a null value means the key doesn't exist. See DBService.prefetch
+	private Map<Key, Entity> references = null;
+	private Map<String, Object> decoded = null; //fields we've already decoded out of source
 	private Set<String> projections; //This can be null
 	
 	private Boolean isNew;
 
+	//top level fields that have been set or removed since this entity was loaded (or last saved)
+	private final Set<String> dirtyFields = new HashSet<>();
+	private final Set<String> unsetFields = new HashSet<>();
+
 	protected Entity(){};
 	
 	/**
@@ -45,10 +62,14 @@ public abstract class Entity implements Cloneable {
 		
 		this.projections = projections;
 
-		//if the entity is phresh, we need to generate a key for it
+		//if the entity is phresh, we need to generate a key for it (unless one was allocated ahead of time)
 		if(isNew) {
-			this.key = db.generateKey(getType());
-			raw.put("_id", new ObjectId(key.getId()));
+			if(raw.containsKey("_id"))
+				this.key = new Key(getType(), raw.getObjectId("_id"));
+			else {
+				this.key = db.generateKey(getType());
+				raw.put("_id", new ObjectId(key.getId()));
+			}
 			setCreatedDate(new Date());
 		}
 		//otherwise, create the key out of the type and ID.
@@ -57,6 +78,88 @@ public abstract class Entity implements Cloneable {
 		}
 
 	}
+
+	/**
+	 * Internal constructor for an entity that decodes its document lazily. Each field is decoded the first time it's
+	 * read, and the whole document is only decoded once something needs all of it, or the first time it's modified.
+	 * See {@link DBService#setLazyDecoding(boolean)}
+	 * @param db
+	 * @param source - the document, as it came off the wire
+	 * @param projections
+	 */
+	protected void init(DBService db, RawBsonDocument source, Set<String> projections) {
+		this.db = db;
+		this.source = source;
+		this.isNew = false;
+
+		this.projections = projections;
+
+		this.key = new Key(getType(), ((ObjectId) read("_id")).toHexString());
+	}
+
+	/**
+	 * @return true if this entity is still reading from its undecoded document.
+	 */
+	public boolean isLazy() {
+		return source != null;
+	}
+
+	/**
+	 * @return the undecoded document this entity is reading from, or null if it has been decoded.
+	 */
+	RawBsonDocument getSource() {
+		return source;
+	}
+
+	/**
+	 * @return true if some fields of the undecoded document have been decoded (or overwritten) on their own. The
+	 * source bytes alone no longer describe this entity then.
+	 */
+	boolean hasDecodedFields() {
+		return decoded != null && !decoded.isEmpty();
+	}
+
+	/**
+	 * The underlying document. If this entity was lazily decoded, this decodes all of it first, keeping any values
+	 * we've already handed out.
+	 * Subclasses should use this rather than reading raw directly.
+	 * @return
+	 */
+	protected Document getDocument() {
+		if(source != null) {
+			Document doc = BsonService.decode(source);
+
+			//values we've handed out may have been modified in place
+			if(decoded != null)
+				doc.putAll(decoded);
+
+			raw = doc;
+			source = null;
+			decoded = null;
+		}
+
+		return raw;
+	}
+
+	/**
+	 * Read a top level field, decoding only that field if we haven't decoded the whole document.
+	 * @param key - the given property
+	 * @return
+	 */
+	private Object read(String key) {
+		if(source == null)
+			return raw.get(key);
+
+		if(decoded == null)
+			decoded = new HashMap<>();
+		else if(decoded.containsKey(key))
+			return decoded.get(key);
+
+		Object value = BsonService.readField(source, key);
+		decoded.put(key, value);
+
+		return value;
+	}
 	
 	/**
 	 * TODO consider reflectively grabbing this?
@@ -68,6 +171,142 @@ public abstract class Entity implements Cloneable {
 	public boolean isNew() {
 		return isNew;
 	}
+
+	/**
+	 * Override this to return true to save this type with optimistic locking. Every save then bumps the entity's
+	 * version, and only goes through if the version in the DB is still the one we loaded. Otherwise it fails with a
+	 * {@link VersionConflictException}, instead of overwriting whatever changed in between.
+	 * See {@link DBService#retryOnConflict(int, Runnable)}
+	 * @return
+	 */
+	protected boolean isVersioned() {
+		return false;
+	}
+
+	/**
+	 * @return how many times this entity has been saved, as of when it was loaded. 0 if it has never been saved
+	 * as a versioned entity.
+	 */
+	public long getVersion() {
+		Object version = read(VERSION_FIELD);
+
+		return version == null ? 0 : ((Number) version).longValue();
+	}
+
+	/**
+	 * Record the version we just wrote. This isn't a change to be saved, so nothing is marked dirty.
+	 * @param version
+	 */
+	void setVersion(long version) {
+		if(source == null) {
+			raw.put(VERSION_FIELD, version);
+			return;
+		}
+
+		//keep the entity lazy; getDocument overlays this
+		if(decoded == null)
+			decoded = new HashMap<>();
+
+		decoded.put(VERSION_FIELD, version);
+	}
+
+	/**
+	 * Called once this entity has been written to the DB. From here on, saving it only sends what changed after this point.
+	 */
+	void markSaved() {
+		isNew = false;
+		dirtyFields.clear();
+		unsetFields.clear();
+	}
+
+	//what this entity looked like before it was first saved in the running transaction. null outside of one
+	private Boolean txWasNew = null;
+	private long txVersion;
+	private Set<String> txDirtyFields = null;
+	private Set<String> txUnsetFields = null;
+
+	/**
+	 * Called just before markSaved when the save happens inside a transaction. Keeps enough to undo it if the
+	 * transaction doesn't commit.
+	 */
+	void rememberForRollback() {
+		if(txWasNew == null) {
+			txWasNew = isNew;
+			txVersion = getVersion();
+			txDirtyFields = new HashSet<>();
+			txUnsetFields = new HashSet<>();
+		}
+
+		txDirtyFields.addAll(dirtyFields);
+		txUnsetFields.addAll(unsetFields);
+	}
+
+	/**
+	 * The transaction this entity was saved in committed, so its saves stick.
+	 */
+	void commitSave() {
+		txWasNew = null;
+		txDirtyFields = null;
+		txUnsetFields = null;
+	}
+
+	/**
+	 * The transaction this entity was saved in was aborted (or is being retried), so put back everything it would have
+	 * to send again.
+	 */
+	void rollbackSave() {
+		if(txWasNew == null)
+			return;
+
+		isNew = txWasNew;
+
+		if(isVersioned())
+			setVersion(txVersion);
+
+		for(String field : txDirtyFields) {
+			if(!unsetFields.contains(field))
+				dirtyFields.add(field);
+		}
+		for(String field : txUnsetFields) {
+			if(!dirtyFields.contains(field))
+				unsetFields.add(field);
+		}
+
+		commitSave();
+	}
+
+	/**
+	 * @return true if any field has been set or removed since this entity was loaded or last saved.
+	 */
+	public boolean isDirty() {
+		return !dirtyFields.isEmpty() || !unsetFields.isEmpty();
+	}
+
+	/**
+	 * @return the top level fields that have been set since this entity was loaded or last saved.
+	 */
+	public Set<String> getDirtyFields() {
+		return Collections.unmodifiableSet(dirtyFields);
+	}
+
+	/**
+	 * @return the top level fields that have been removed since this entity was loaded or last saved.
+	 */
+	public Set<String> getUnsetFields() {
+		return Collections.unmodifiableSet(unsetFields);
+	}
+
+	/**
+	 * Flag a field as changed so that it's sent on the next save.
+	 * Only needed if you've modified a value in place (eg. added to a list returned by getListValue) instead of
+	 * going through setValue.
+	 * @param key - the top level property
+	 */
+	public void markDirty(String key) {
+		getDocument();
+		dirtyFields.add(key);
+		unsetFields.remove(key);
+	}
 	
 	public boolean projected() {
 		return projections != null && false == projections.isEmpty();
@@ -82,7 +321,7 @@ public abstract class Entity implements Cloneable {
 	}
 	
 	public String getName() {
-		return raw.getString("name");
+		return (String) read("name");
 	}
 
 	/**
@@ -91,12 +330,43 @@ public abstract class Entity implements Cloneable {
 	 * @return
 	 * @param <T>
 	 */
+	@SuppressWarnings("unchecked")
 	public <T extends Entity> List<T> getReferencedEntityList(String key){
 		List<Key> keys = getKeyList(key);
 
+		if(references != null && references.keySet().containsAll(keys)) {
+			List<T> result = new ArrayList<>();
+
+			//same as getEntities: missing keys and repeats are left out
+			for(Key k : new LinkedHashSet<>(keys)) {
+				T ent = (T) references.get(k);
+
+				if(ent != null)
+					result.add(ent);
+			}
+
+			return result;
+		}
+
 		return db.getEntities(keys);
 	}
 
+	/**
+	 * Attach referenced entities that were loaded ahead of time, so following references to them doesn't go to the DB.
+	 * @param loaded - key to entity, or to null if the key doesn't exist. This may be shared with other entities.
+	 */
+	void attachReferences(Map<Key, Entity> loaded) {
+		if(references == null || references == loaded) {
+			references = loaded;
+			return;
+		}
+
+		Map<Key, Entity> merged = new HashMap<>(references);
+		merged.putAll(loaded);
+
+		references = merged;
+	}
+
 	/**
 	 * Get a list of keys. Can be empty.
 	 * @param key
@@ -121,6 +391,13 @@ public abstract class Entity implements Cloneable {
 		addKeyToList(targetKey, toAdd.getKey());
 	}
 
+	/**
+	 * Append a key to a list on this entity. This rewrites the whole list when the entity is saved;
+	 * to append on the server instead, see {@link DBService#updateEntity(Key, String, UpdateOperator, Object)}
+	 * with {@link UpdateOperator#PUSH}
+	 * @param targetKey
+	 * @param toAdd
+	 */
 	public void addKeyToList(String targetKey, Key toAdd){
 		List<Key> current = getKeyList(targetKey);
 		current.add(toAdd);
@@ -136,31 +413,35 @@ public abstract class Entity implements Cloneable {
 	 * @param <T> - the type of list
 	 */
 	protected <T> List<T> getListValue(String key, Class<T> type){
-		return raw.getList(key, type);
+		if(source == null)
+			return raw.getList(key, type);
+
+		//let Document do the element checks
+		return new Document(key, read(key)).getList(key, type);
 	}
 	
 	public Object getValue(String key) {
-		return raw.get(key);
+		return read(key);
 	}
 	public String getStringValue(String key){
 		return (String) getValue(key);
 	}
 	protected Date getDateValue(String key){
-		return raw.getDate(key);
+		return (Date) read(key);
 	}
 
 	protected Boolean getBooleanValue(String key){
 
-		Boolean result = raw.getBoolean(key);
+		Boolean result = (Boolean) read(key);
 
 		if(result == null)
 			return false;
 
-		return raw.getBoolean(key);
+		return result;
 	}
 
 	protected Long getLongValue(String key){
-		Long result = raw.getLong(key);
+		Long result = (Long) read(key);
 		if(result == null)
 			result = 0L;
 
@@ -168,7 +449,7 @@ public abstract class Entity implements Cloneable {
 	}
 
 	protected Double getDoubleValue(String key){
-		Double d = raw.getDouble(key);
+		Double d = (Double) read(key);
 		if(d == null)
 			return 0d;
 		return d;
@@ -222,7 +503,7 @@ public abstract class Entity implements Cloneable {
 	}
 
 	private <T> Map<String, T> getMapValue(String key, Function<Object, T> func){
-		Document doc = raw.get(key, Document.class);
+		Document doc = (Document) read(key);
 
 		Map<String, T> result = new HashMap<>();
 
@@ -272,7 +553,7 @@ public abstract class Entity implements Cloneable {
 	 * @return
 	 */
 	private Document getEmbedded(String key){
-		return raw.get(key, Document.class);
+		return (Document) read(key);
 	}
 
 	/**
@@ -285,7 +566,8 @@ public abstract class Entity implements Cloneable {
 
 		d.putAll(map);
 
-		raw.put(key, d);
+		getDocument().put(key, d);
+		markDirty(key);
 	}
 
 	/**
@@ -315,12 +597,16 @@ public abstract class Entity implements Cloneable {
 	 * @return the entity
 	 * @param <T> - the resulting entity type
 	 */
+	@SuppressWarnings("unchecked")
 	protected <T extends Entity> T getEntityFromKeyValue(String key){
 		Key k = getKeyValue(key);
 
 		if(k == null)
 			return null;
 
+		if(references != null && references.containsKey(k))
+			return (T) references.get(k);
+
 		return db.getEntity(k);
 	}
 
@@ -330,7 +616,18 @@ public abstract class Entity implements Cloneable {
 	 * @param value - the new value
 	 */
 	public void setValue(String key, Object value) {
-		raw.put(key, BsonService.parseValue(value));
+		getDocument().put(key, BsonService.parseValue(value));
+		markDirty(key);
+	}
+
+	/**
+	 * Remove a value from this entity entirely. The next save unsets it in the DB.
+	 * @param key - the property we are removing
+	 */
+	public void removeValue(String key) {
+		getDocument().remove(key);
+		dirtyFields.remove(key);
+		unsetFields.add(key);
 	}
 
 	/**
@@ -359,6 +656,9 @@ public abstract class Entity implements Cloneable {
 	 * @return
 	 */
 	public boolean hasValue(String key) {
+		if(source != null)
+			return (decoded != null && decoded.containsKey(key)) || source.containsKey(key);
+
 		return raw.containsKey(key);
 	}
 
@@ -389,7 +689,7 @@ public abstract class Entity implements Cloneable {
 	 * INSTEAD, allow them to iterate over an unmodifiable version of the document
 	 */
 	public void iterateOverAllProperties(Consumer<? super Entry<String, Object>> transformation){
-		Collections.unmodifiableCollection(raw.entrySet()).forEach(transformation);
+		Collections.unmodifiableCollection(getDocument().entrySet()).forEach(transformation);
 	}
 
 	private void setCreatedDate(Date d){
@@ -408,8 +708,8 @@ public abstract class Entity implements Cloneable {
 		Entity result = db.createEntity(getType());
 
 		iterateOverAllProperties(entry -> {
-			//dont copy over the ID
-			if(entry.getKey().equals("_id"))
+			//dont copy over the ID, or the version
+			if(entry.getKey().equals("_id") || entry.getKey().equals(VERSION_FIELD))
 				return;
 			result.setValue(entry.getKey(), entry.getValue());
 		});
@@ -425,7 +725,7 @@ public abstract class Entity implements Cloneable {
 	public JsonObject toJson() {
 		JsonObject result = new JsonObject();
 		
-		for(Entry<String, Object> entry : raw.entrySet())
+		for(Entry<String, Object> entry : getDocument().entrySet())
 			result.put(entry.getKey(), entry.getValue());
 		
 		return result;
@@ -0,0 +1,284 @@
+package ca.elixa.db;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+
+/**
+ * A process-wide cache of entity documents, keyed by {@link Key}. This is meant to be shared between every
+ * {@link DBService} in the process; see {@link DBService#setEntityCache(EntityCache)}.
+ *
+ * Only types that have been configured with {@link #configure(String, long, long)} are cached. Each type gets its own
+ * LRU region, bounded by a time to live and a maximum weight (the encoded size of the documents, in bytes).
+ *
+ * We store the encoded bson rather than the entity itself, since entities are mutable and bound to a DBService.
+ * Every hit decodes a fresh copy.
+ *
+ * This is ThreadSafe.
+ *
+ * @author Evan
+ *
+ */
+public class EntityCache {
+
+	private static final DocumentCodec codec = new DocumentCodec();
+
+	private final Map<String, Region> regions = new ConcurrentHashMap<>();
+	private final AtomicLong clock = new AtomicLong(); //shared by the invalidations of every region
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Start caching a type.
+	 * @param type - the entity type
+	 * @param ttlMillis - how long a document stays in the cache after it is loaded. 0 or less means forever.
+	 * @param maxWeight - the maximum total size of the documents we keep for this type, in bytes.
+	 * @return itself
+	 */
+	public EntityCache configure(String type, long ttlMillis, long maxWeight){
+		regions.put(type, new Region(ttlMillis, maxWeight));
+		return this;
+	}
+
+	/**
+	 * Stop caching a type, and forget everything we had for it.
+	 * @param type
+	 */
+	public void remove(String type){
+		regions.remove(type);
+	}
+
+	public boolean isCached(String type){
+		return regions.containsKey(type);
+	}
+
+	/**
+	 * @param key
+	 * @return a fresh copy of the cached document, or null if we don't have it.
+	 */
+	protected Document get(Key key){
+		Region region = regions.get(key.getType());
+
+		if(region == null)
+			return null;
+
+		RawBsonDocument raw = region.get(key);
+
+		if(raw == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		hits.incrementAndGet();
+		return raw.decode(codec);
+	}
+
+	/**
+	 * Take this before loading a document, and hand it to put. See {@link Invalidations}
+	 * @return
+	 */
+	protected long stamp(){
+		return clock.get();
+	}
+
+	/**
+	 * Cache a document we've just loaded. Does nothing if the type isn't configured, or if the document was written
+	 * or deleted since the stamp was taken.
+	 * @param key
+	 * @param doc
+	 * @param stamp - from {@link #stamp()}, taken before the document was loaded
+	 */
+	protected void put(Key key, Document doc, long stamp){
+		Region region = regions.get(key.getType());
+
+		if(region == null)
+			return;
+
+		region.put(key, new RawBsonDocument(doc, codec), stamp);
+	}
+
+	/**
+	 * Cache a document we've just loaded in its raw form, which saves encoding it again.
+	 * @param key
+	 * @param raw
+	 * @param stamp - from {@link #stamp()}, taken before the document was loaded
+	 */
+	protected void put(Key key, RawBsonDocument raw, long stamp){
+		Region region = regions.get(key.getType());
+
+		if(region == null)
+			return;
+
+		region.put(key, raw, stamp);
+	}
+
+	/**
+	 * Forget a single document. This should be called whenever it is written or deleted.
+	 * @param key
+	 */
+	public void invalidate(Key key){
+		Region region = regions.get(key.getType());
+
+		//a region configured after this still turns away reads stamped before it
+		if(region == null)
+			return;
+
+		region.invalidate(key);
+	}
+
+	/**
+	 * Forget every document of a type. This is for writes where we can't tell which documents were touched.
+	 * @param type
+	 */
+	public void invalidateType(String type){
+		Region region = regions.get(type);
+
+		if(region != null)
+			region.invalidateAll();
+	}
+
+	public void clear(){
+		for(Region region : regions.values())
+			region.invalidateAll();
+	}
+
+	public long getHitCount(){
+		return hits.get();
+	}
+
+	public long getMissCount(){
+		return misses.get();
+	}
+
+	/**
+	 * @return how many documents were dropped, either because their region was full or because they expired.
+	 */
+	public long getEvictionCount(){
+		return evictions.get();
+	}
+
+	/**
+	 * @param type
+	 * @return how many documents we currently hold for a type.
+	 */
+	public int getSize(String type){
+		Region region = regions.get(type);
+
+		if(region == null)
+			return 0;
+
+		return region.size();
+	}
+
+	/**
+	 * @param type
+	 * @return the total encoded size of the documents we currently hold for a type.
+	 */
+	public long getWeight(String type){
+		Region region = regions.get(type);
+
+		if(region == null)
+			return 0;
+
+		return region.weight();
+	}
+
+	private record CachedDocument(RawBsonDocument raw, long weight, long expiresAt){}
+
+	/**
+	 * The cache for a single type. Access ordered, so iterating starts from the least recently used document.
+	 */
+	private class Region {
+		private final long ttl;
+		private final long maxWeight;
+
+		private final LinkedHashMap<Key, CachedDocument> entries = new LinkedHashMap<>(16, 0.75f, true);
+		private long weight = 0;
+
+		private final Invalidations invalidations = new Invalidations(clock);
+
+		private Region(long ttl, long maxWeight){
+			this.ttl = ttl;
+			this.maxWeight = maxWeight;
+		}
+
+		private synchronized RawBsonDocument get(Key key){
+			CachedDocument cached = entries.get(key);
+
+			if(cached == null)
+				return null;
+
+			if(cached.expiresAt() < System.currentTimeMillis()) {
+				removeInternal(key);
+				evictions.incrementAndGet();
+				return null;
+			}
+
+			return cached.raw();
+		}
+
+		private synchronized void put(Key key, RawBsonDocument raw, long stamp){
+			long size = raw.getByteBuffer().remaining();
+
+			//this will never fit, don't bother
+			if(size > maxWeight)
+				return;
+
+			//it was written while we were loading it, so what we have may be stale
+			if(!invalidations.isCurrent(key, stamp))
+				return;
+
+			removeInternal(key);
+
+			long expiresAt = ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE;
+
+			entries.put(key, new CachedDocument(raw, size, expiresAt));
+			weight += size;
+
+			Iterator<CachedDocument> it = entries.values().iterator();
+
+			while(weight > maxWeight && it.hasNext()) {
+				weight -= it.next().weight();
+				it.remove();
+				evictions.incrementAndGet();
+			}
+		}
+
+		/**
+		 * Recorded before the entry is dropped, so a put that hasn't reached the region yet is turned away.
+		 */
+		private synchronized void invalidate(Key key){
+			invalidations.invalidate(key);
+			removeInternal(key);
+		}
+
+		private synchronized void invalidateAll(){
+			invalidations.invalidateAll();
+			entries.clear();
+			weight = 0;
+		}
+
+		private void removeInternal(Key key){
+			CachedDocument removed = entries.remove(key);
+
+			if(removed != null)
+				weight -= removed.weight();
+		}
+
+		private synchronized int size(){
+			return entries.size();
+		}
+
+		private synchronized long weight(){
+			return weight;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package ca.elixa.db;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+/**
+ * Decodes documents straight into an Entity subclass.
+ * The document is decoded with the database's own Document codec, so values (UUIDs, custom codecs) come out exactly
+ * as they would from a Document find, and it becomes the entity's backing store as is, without being copied.
+ *
+ * Encoding is only here so the driver can write an entity it's handed directly; DBService's own writes send the
+ * entity's Document. A lazily decoded entity that hasn't handed out any fields is copied byte for byte.
+ *
+ * Entities decoded here are never projected; projected finds still go through Document.
+ * See {@link EntityCodecProvider}
+ *
+ * @author Evan
+ *
+ * @param <T> - the entity type
+ */
+public class EntityCodec<T extends Entity> implements Codec<T> {
+
+	private final DBService db;
+	private final EntityType<T> type;
+	private final Codec<Document> documentCodec;
+
+	/**
+	 * @param documentCodec - from the registry the codec is being built for
+	 */
+	protected EntityCodec(DBService db, EntityType<T> type, Codec<Document> documentCodec) {
+		this.db = db;
+		this.type = type;
+		this.documentCodec = documentCodec;
+	}
+
+	@Override
+	public T decode(BsonReader reader, DecoderContext context) {
+		return db.entityService.createEntityObject(db, type, documentCodec.decode(reader, context), false, null);
+	}
+
+	@Override
+	public void encode(BsonWriter writer, T ent, EncoderContext context) {
+		RawBsonDocument source = ent.getSource();
+
+		//anything already handed out (or written, like the version) may differ from the bytes
+		if(source != null && !ent.hasDecodedFields()) {
+			try(BsonBinaryReader reader = new BsonBinaryReader(source.getByteBuffer().asNIO())) {
+				writer.pipe(reader);
+			}
+			return;
+		}
+
+		documentCodec.encode(writer, ent.getDocument(), context);
+	}
+
+	@Override
+	public Class<T> getEncoderClass() {
+		return type.getEntityClass();
+	}
+}
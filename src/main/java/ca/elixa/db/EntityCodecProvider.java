@@ -0,0 +1,36 @@
+package ca.elixa.db;
+
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecProvider;
+import org.bson.codecs.configuration.CodecRegistry;
+
+/**
+ * Hands the driver an {@link EntityCodec} for any Entity subclass the {@link EntityFactory} knows about.
+ * {@link DBService} registers one on its database, so a find can ask for entities instead of Documents.
+ *
+ * @author Evan
+ *
+ */
+public class EntityCodecProvider implements CodecProvider {
+
+	private final DBService db;
+
+	public EntityCodecProvider(DBService db) {
+		this.db = db;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> Codec<T> get(Class<T> clazz, CodecRegistry registry) {
+		if(!Entity.class.isAssignableFrom(clazz))
+			return null;
+
+		String type = db.entityService.getType(clazz);
+
+		if(type == null)
+			return null;
+
+		return (Codec<T>) new EntityCodec<>(db, db.entityService.getEntityType(type), registry.get(Document.class));
+	}
+}
@@ -1,10 +1,22 @@
 package ca.elixa.db;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import ca.elixa.classpool.ClassPoolString;
 import ca.elixa.classpool.GroupedClassPool;
+import ca.elixa.iris.Iris;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 
 /**
  * This class is for generating subclasses of {@link Entity}. Implementations of {@link DBService} are responsible
@@ -15,22 +27,203 @@ import org.bson.Document;
  */
 public class EntityFactory {
 
-	public final ClassPoolString<? extends Entity> pool;
+	/**
+	 * Where the entity index is written at build time. See {@link EntityIndexProcessor}
+	 */
+	public static final String INDEX_RESOURCE = "META-INF/ca.elixa.db/entity.index";
+
+	private final String[] paths;
+
+	/**
+	 * The scanned class pool. null until we need it; see {@link #getPool()}
+	 */
+	private volatile ClassPoolString<? extends Entity> pool = null;
 
+	/**
+	 * Load every Entity subclass under the given package. If the classpath has an entity index, we read it instead of
+	 * scanning the package, and only scan if we're asked for a type it doesn't list.
+	 * @param path
+	 */
 	public EntityFactory(String path){
-		pool = new ClassPoolString<>(path, Entity.class);
+		this.paths = new String[] {path};
+
+		if(!loadIndex(path))
+			getPool();
 	}
 
+	/**
+	 * Load every Entity subclass under the given packages. If the classpath has an entity index, we read it instead of
+	 * scanning the packages, and only scan if we're asked for a type it doesn't list.
+	 * @param paths
+	 */
 	public EntityFactory(String... paths){
+		this.paths = paths.clone();
+
+		if(!loadIndex(paths))
+			getPool();
+	}
+
+	/**
+	 * The scanned class pool. When the types were loaded from the entity index, the packages are only scanned the
+	 * first time this is called.
+	 * @return
+	 */
+	public ClassPoolString<? extends Entity> getPool() {
+		ClassPoolString<? extends Entity> result = pool;
+
+		if(result != null)
+			return result;
+
+		synchronized(this) {
+			if(pool != null)
+				return pool;
+
+			if(paths.length == 1) {
+				pool = new ClassPoolString<>(paths[0], Entity.class);
+				return pool;
+			}
+
+			GroupedClassPool<Entity> gPool = new GroupedClassPool<>("ca.elixa", Entity.class);
 
-		GroupedClassPool<Entity> gPool = new GroupedClassPool<>("ca.elixa", Entity.class);
+			for(String path : paths){
+				ClassPoolString<Entity> p = new ClassPoolString<>(path, Entity.class);
+				gPool.addPool(p);
+			}
 
-		for(String path : paths){
-			ClassPoolString<Entity> p = new ClassPoolString<>(path, Entity.class);
-			gPool.addPool(p);
+			pool = gPool;
+			return pool;
 		}
+	}
+
+	/**
+	 * Register every indexed class under the given packages.
+	 * @param paths
+	 * @return false if there's no index, or nothing in it is under these packages. We should scan instead.
+	 */
+	private boolean loadIndex(String... paths) {
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		if(loader == null)
+			loader = EntityFactory.class.getClassLoader();
+
+		List<String> classNames = new ArrayList<>();
+
+		try {
+			Enumeration<URL> indexes = loader.getResources(INDEX_RESOURCE);
+
+			while(indexes.hasMoreElements()) {
+				try(BufferedReader reader = new BufferedReader(new InputStreamReader(indexes.nextElement().openStream(), StandardCharsets.UTF_8))) {
+					String line;
+
+					while((line = reader.readLine()) != null) {
+						line = line.trim();
+
+						if(!line.isEmpty() && inPackages(line, paths))
+							classNames.add(line);
+					}
+				}
+			}
+		}
+		catch(IOException e) {
+			Iris.warning("Could not read the entity index, scanning instead: " + e.getMessage());
+			return false;
+		}
+
+		if(classNames.isEmpty())
+			return false;
+
+		for(String name : classNames) {
+			EntityType<?> type;
+
+			try {
+				type = EntityType.of(Class.forName(name, false, loader).asSubclass(Entity.class));
+			}
+			catch(ClassNotFoundException | ClassCastException e) {
+				Iris.warning("Entity index lists " + name + ", which isn't an Entity on the classpath");
+				continue;
+			}
+
+			//we'll find it by scanning, if anything asks for it
+			if(type == null) {
+				Iris.warning("Entity index lists " + name + ", which has no no-arg constructor");
+				continue;
+			}
 
-		pool = gPool;
+			registry.put(type.getName(), type);
+			types.put(type.getEntityClass(), type.getName());
+		}
+
+		return true;
+	}
+
+	private static boolean inPackages(String className, String... paths) {
+		for(String path : paths) {
+			if(className.startsWith(path + "."))
+				return true;
+		}
+
+		return false;
+	}
+
+	//every type we've resolved so far. Entries are never removed, so a lookup never needs the pool after the first one
+	private final Map<String, EntityType<?>> registry = new ConcurrentHashMap<>();
+	private final Map<Class<?>, String> types = new ConcurrentHashMap<>();
+
+	/**
+	 * Resolve an entity type, compiling its constructor the first time it's asked for.
+	 * Hot paths should hold on to the result rather than calling this for every entity.
+	 * @param type
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Entity> EntityType<T> getEntityType(String type) {
+		EntityType<?> result = registry.get(type);
+
+		if(result == null)
+			result = registry.computeIfAbsent(type, this::compile);
+
+		return (EntityType<T>) result;
+	}
+
+	/**
+	 * Resolve a batch of types ahead of time, so the first entity of each doesn't pay for it. Call this at startup.
+	 * @param types
+	 */
+	public void precompile(Iterable<String> types) {
+		for(String type : types)
+			getEntityType(type);
+	}
+
+	private EntityType<?> compile(String type) {
+		//the index can be partial, eg. after an incremental compile, or from a jar built without the processor
+		if(pool == null)
+			Iris.warning("Entity type " + type + " isn't in the entity index, scanning for it");
+
+		Entity prototype = getPool().get(type);
+
+		if(prototype == null)
+			throw new IllegalArgumentException("Unknown entity type " + type);
+
+		EntityType<?> result = EntityType.of(type, prototype);
+
+		types.put(result.getEntityClass(), type);
+
+		return result;
+	}
+
+	/**
+	 * @param type
+	 * @return the Entity subclass registered for this type.
+	 */
+	public <T extends Entity> Class<T> getEntityClass(String type) {
+		return this.<T>getEntityType(type).getEntityClass();
+	}
+
+	/**
+	 * @param clazz
+	 * @return the type of an Entity subclass, or null if we haven't resolved it through {@link #getEntityType(String)}
+	 */
+	public String getType(Class<?> clazz) {
+		return types.get(clazz);
 	}
 	
 	protected <T extends Entity> T buildEntity(final DBService db, final String type, Document doc) {
@@ -45,6 +238,20 @@ public class EntityFactory {
 		return createEntityObject(db, type, doc, false, projections);
 	}
 
+	/**
+	 * Build an entity that decodes its document as its fields are read. See {@link Entity#init(DBService, RawBsonDocument, Set)}
+	 * @param projections - any projections on this entity. This can be null.
+	 */
+	protected <T extends Entity> T buildLazyEntity(final DBService db, final String type, RawBsonDocument doc, Set<String> projections) {
+		return buildLazyEntity(db, this.<T>getEntityType(type), doc, projections);
+	}
+
+	protected <T extends Entity> T buildLazyEntity(final DBService db, final EntityType<T> type, RawBsonDocument doc, Set<String> projections) {
+		T result = type.newInstance();
+		result.init(db, doc, projections);
+		return result;
+	}
+
 	/**
 	 * @param isNew - if this is a fresh entity
 	 * @param projections - any projections on this entity.
@@ -52,8 +259,14 @@ public class EntityFactory {
 	 * @return the entity.
 	 */
 	protected <T extends Entity> T createEntityObject(final DBService db, final String type, Document doc, Boolean isNew, Set<String> projections){
-		T raw = (T) pool.get(type);
-		T result = raw.instantiate();
+		return createEntityObject(db, this.<T>getEntityType(type), doc, isNew, projections);
+	}
+
+	/**
+	 * Same as createEntityObject(DBService, String, ...), for callers that have already resolved the type.
+	 */
+	protected <T extends Entity> T createEntityObject(final DBService db, final EntityType<T> type, Document doc, Boolean isNew, Set<String> projections){
+		T result = type.newInstance();
 		result.init(db, doc, isNew, projections);
 		return result;
 	}
@@ -0,0 +1,90 @@
+package ca.elixa.db;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.StandardLocation;
+
+/**
+ * Writes the entity index at compile time: the name of every concrete {@link Entity} subclass being compiled, one per
+ * line, to {@link EntityFactory#INDEX_RESOURCE}. With the index on the classpath, {@link EntityFactory} registers
+ * those classes directly instead of scanning packages at startup.
+ *
+ * This runs automatically for any project that compiles against this jar. Every indexed class needs a no-arg
+ * constructor (it can be protected).
+ *
+ * @author Evan
+ *
+ */
+@SupportedAnnotationTypes("*")
+public class EntityIndexProcessor extends AbstractProcessor {
+
+	private final Set<String> entities = new TreeSet<>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+		TypeElement entity = processingEnv.getElementUtils().getTypeElement("ca.elixa.db.Entity");
+
+		if(entity == null)
+			return false;
+
+		TypeMirror entityType = processingEnv.getTypeUtils().erasure(entity.asType());
+
+		for(Element element : round.getRootElements())
+			collect(element, entityType);
+
+		if(round.processingOver())
+			write();
+
+		//we only look; leave the annotations for everyone else
+		return false;
+	}
+
+	private void collect(Element element, TypeMirror entityType) {
+		if(element.getKind() != ElementKind.CLASS)
+			return;
+
+		TypeElement type = (TypeElement) element;
+
+		if(!type.getModifiers().contains(Modifier.ABSTRACT)
+				&& processingEnv.getTypeUtils().isAssignable(processingEnv.getTypeUtils().erasure(type.asType()), entityType))
+			entities.add(processingEnv.getElementUtils().getBinaryName(type).toString());
+
+		for(Element enclosed : type.getEnclosedElements())
+			collect(enclosed, entityType);
+	}
+
+	private void write() {
+		if(entities.isEmpty())
+			return;
+
+		try(Writer writer = processingEnv.getFiler()
+				.createResource(StandardLocation.CLASS_OUTPUT, "", EntityFactory.INDEX_RESOURCE)
+				.openWriter()) {
+
+			for(String name : entities)
+				writer.write(name + "\n");
+		}
+		catch(IOException e) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Could not write the entity index: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package ca.elixa.db;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.mongodb.client.MongoCursor;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+
+/**
+ * Lazily builds entities from a live cursor, one at a time. Nothing is materialized ahead of the caller,
+ * so memory stays flat no matter how many documents the query matches.
+ *
+ * This holds a server-side cursor open until it is exhausted or closed. Always close it; try-with-resources works.
+ * See {@link DBService#iterateEntityQuery(Query)}
+ *
+ * @author Evan
+ *
+ * @param <T> - the resulting entity type
+ */
+public class EntityIterator<T extends Entity> implements Iterator<T>, AutoCloseable {
+
+	private final DBService db;
+	private final EntityType<T> type; //resolved once for the whole scan
+	private final Set<String> projections; //This can be null
+	private final MongoCursor<?> cursor; //entities, Documents, or RawBsonDocuments when decoding lazily
+
+	protected EntityIterator(DBService db, String type, Set<String> projections, MongoCursor<?> cursor) {
+		this.db = db;
+		this.type = db.entityService.getEntityType(type);
+		this.projections = projections;
+		this.cursor = cursor;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return cursor.hasNext();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T next() {
+		if(!cursor.hasNext())
+			throw new NoSuchElementException();
+
+		Object doc = cursor.next();
+
+		//already decoded by EntityCodec
+		if(doc instanceof Entity ent)
+			return (T) ent;
+
+		if(doc instanceof RawBsonDocument raw)
+			return db.entityService.buildLazyEntity(db, type, raw, projections);
+
+		return db.entityService.createEntityObject(db, type, (Document) doc, false, projections);
+	}
+
+	/**
+	 * Release the server-side cursor.
+	 */
+	@Override
+	public void close() {
+		cursor.close();
+	}
+}
@@ -0,0 +1,146 @@
+package ca.elixa.db;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InaccessibleObjectException;
+import java.util.function.Supplier;
+
+import ca.elixa.iris.Iris;
+
+/**
+ * A resolved entity type: its name, its class, and a compiled constructor. Creating an entity through one of these is a
+ * direct constructor call, with no pool lookup and no prototype.
+ *
+ * These are built once per type by {@link EntityFactory#getEntityType(String)}. Code that builds many entities of the
+ * same type (a scan, a codec) should resolve the EntityType once and hold on to it, which skips even the map lookup.
+ *
+ * @author Evan
+ *
+ * @param <T> - the entity type
+ */
+public final class EntityType<T extends Entity> {
+
+	private final String name;
+	private final Class<T> clazz;
+	private final Supplier<T> constructor;
+	private final boolean versioned;
+
+	private EntityType(String name, Class<T> clazz, Supplier<T> constructor) {
+		this.name = name;
+		this.clazz = clazz;
+		this.constructor = constructor;
+		this.versioned = constructor.get().isVersioned();
+	}
+
+	/**
+	 * @param name - the type
+	 * @param prototype - an instance of the type, used if its constructor can't be compiled
+	 * @return
+	 */
+	protected static <T extends Entity> EntityType<T> of(String name, T prototype) {
+		@SuppressWarnings("unchecked")
+		Class<T> clazz = (Class<T>) prototype.getClass();
+		Supplier<T> constructor = compile(clazz);
+
+		return new EntityType<>(name, clazz, constructor == null ? prototype::instantiate : constructor);
+	}
+
+	/**
+	 * Resolve a class we only know by name, asking an instance of it for its type.
+	 * @param clazz
+	 * @return the resolved type, or null if the class has no usable no-arg constructor.
+	 */
+	protected static <T extends Entity> EntityType<T> of(Class<T> clazz) {
+		Supplier<T> constructor = compile(clazz);
+
+		if(constructor == null)
+			return null;
+
+		return new EntityType<>(constructor.get().getType(), clazz, constructor);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Class<T> getEntityClass() {
+		return clazz;
+	}
+
+	/**
+	 * @return true if this type saves with optimistic locking. See {@link Entity#isVersioned()}
+	 */
+	public boolean isVersioned() {
+		return versioned;
+	}
+
+	/**
+	 * @return a new, uninitialized instance of this type.
+	 */
+	protected T newInstance() {
+		return constructor.get();
+	}
+
+	/**
+	 * Turn the class's no-arg constructor into a Supplier, so creating an instance is a plain constructor call.
+	 * If it can't be compiled, we fall back to calling the constructor reflectively.
+	 * @return the supplier, or null if there isn't a no-arg constructor at all.
+	 */
+	private static <T extends Entity> Supplier<T> compile(Class<T> clazz) {
+		CallSite site;
+
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(clazz, MethodHandles.lookup());
+			MethodHandle ctor = lookup.findConstructor(clazz, MethodType.methodType(void.class));
+
+			site = LambdaMetafactory.metafactory(lookup, "get",
+					MethodType.methodType(Supplier.class),
+					MethodType.methodType(Object.class),
+					ctor,
+					MethodType.methodType(clazz));
+		}
+		catch(ReflectiveOperationException | LambdaConversionException e) {
+			Iris.warning("Could not compile a constructor for " + clazz.getName() + ", using reflection instead: " + e);
+			return reflective(clazz);
+		}
+
+		try {
+			return (Supplier<T>) site.getTarget().invoke();
+		}
+		catch(RuntimeException | Error e) {
+			throw e;
+		}
+		catch(Throwable e) {
+			throw new IllegalStateException("Could not create the constructor for " + clazz.getName(), e);
+		}
+	}
+
+	/**
+	 * @return a Supplier that calls the class's no-arg constructor reflectively, or null if it doesn't have one.
+	 */
+	private static <T extends Entity> Supplier<T> reflective(Class<T> clazz) {
+		Constructor<T> ctor;
+
+		try {
+			ctor = clazz.getDeclaredConstructor();
+			ctor.setAccessible(true);
+		}
+		catch(NoSuchMethodException | InaccessibleObjectException e) {
+			return null;
+		}
+
+		return () -> {
+			try {
+				return ctor.newInstance();
+			}
+			catch(ReflectiveOperationException e) {
+				throw new IllegalStateException("Could not create an instance of " + clazz.getName(), e);
+			}
+		};
+	}
+}
@@ -1,5 +1,8 @@
 package ca.elixa.db;
 
 public enum FilterOperator {
-    EQUAL, NOT_EQUAL, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL
+    EQUAL, NOT_EQUAL, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL,
+    IN, //the value is a list or array
+    NOT_IN, //the value is a list or array
+    EXISTS //the value is a boolean
 }
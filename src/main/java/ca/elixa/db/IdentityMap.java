@@ -0,0 +1,72 @@
+package ca.elixa.db;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A unit-of-work scoped map of every entity we've materialized, keyed by {@link Key}.
+ * While one of these is active on a {@link DBService}, fetching the same key twice hands back the same instance
+ * instead of making another round trip.
+ *
+ * This is meant to live for a single request or transaction. It is not ThreadSafe.
+ *
+ * @author Evan
+ *
+ */
+public class IdentityMap {
+
+	private final Map<Key, Entity> entities = new HashMap<>();
+
+	protected IdentityMap(){}
+
+	/**
+	 * @param key
+	 * @return the entity we've already loaded for this key, or null if we haven't seen it.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Entity> T get(Key key){
+		return (T) entities.get(key);
+	}
+
+	public boolean contains(Key key){
+		return entities.containsKey(key);
+	}
+
+	/**
+	 * Remember an entity. Projected entities are never stored, since they aren't the full document.
+	 * @param ent
+	 */
+	protected void put(Entity ent){
+		if(ent == null || ent.projected())
+			return;
+
+		entities.put(ent.getKey(), ent);
+	}
+
+	protected void remove(Key key){
+		entities.remove(key);
+	}
+
+	/**
+	 * Forget every entity of the given type. Used when we can't tell exactly which documents were touched,
+	 * such as a delete query.
+	 * @param type
+	 */
+	protected void removeType(String type){
+		Iterator<Key> it = entities.keySet().iterator();
+
+		while(it.hasNext()){
+			if(it.next().getType().equals(type))
+				it.remove();
+		}
+	}
+
+	public void clear(){
+		entities.clear();
+	}
+
+	public int size(){
+		return entities.size();
+	}
+}
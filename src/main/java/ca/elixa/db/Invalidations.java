@@ -0,0 +1,70 @@
+package ca.elixa.db;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tells a cache whether something it's about to store is still current. A reader reads a stamp off the clock before it
+ * goes to the DB, and only stores what it read if nothing it covers was invalidated since. Otherwise a read that
+ * started before a write, but finished after the write's invalidation, would put the old document back.
+ *
+ * Only the most recent invalidations are remembered per key; older ones are folded into a floor, so a read that
+ * started before them is conservatively turned away.
+ *
+ * A cache keeps one of these per region, so writes to one type never wait on, or evict the bookkeeping of, another.
+ * The regions of a cache share a clock, which is what stamps are read from.
+ *
+ * This is ThreadSafe.
+ *
+ * @author Evan
+ *
+ */
+final class Invalidations {
+
+	private static final int MAX_KEYS = 10000;
+
+	private final AtomicLong clock;
+	private long floor; //no read stamped before this is current
+
+	private final LinkedHashMap<Key, Long> keys = new LinkedHashMap<>(); //key -> when it was last invalidated, oldest first
+
+	/**
+	 * @param clock - shared by every region of a cache. Nothing stamped before this region existed is current in it,
+	 * since whatever was invalidated before then wasn't recorded here.
+	 */
+	Invalidations(AtomicLong clock) {
+		this.clock = clock;
+		this.floor = clock.incrementAndGet();
+	}
+
+	synchronized void invalidate(Key key) {
+		keys.remove(key);
+		keys.put(key, clock.incrementAndGet());
+
+		Iterator<Long> it = keys.values().iterator();
+
+		while(keys.size() > MAX_KEYS && it.hasNext()) {
+			floor = Math.max(floor, it.next());
+			it.remove();
+		}
+	}
+
+	synchronized void invalidateAll() {
+		floor = clock.incrementAndGet();
+		keys.clear();
+	}
+
+	/**
+	 * @param key
+	 * @param stamp - taken before the read
+	 * @return true if nothing invalidated this key since the stamp was taken.
+	 */
+	synchronized boolean isCurrent(Key key, long stamp) {
+		if(stamp < floor)
+			return false;
+
+		Long at = keys.get(key);
+		return at == null || stamp >= at;
+	}
+}
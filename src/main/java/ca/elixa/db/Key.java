@@ -85,4 +85,9 @@ public class Key {
 		}
 		return false;
 	}
+
+	@Override
+	public int hashCode(){
+		return 31 * type.hashCode() + id.hashCode();
+	}
 }
@@ -0,0 +1,165 @@
+package ca.elixa.db;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.client.MongoDatabase;
+import org.bson.RawBsonDocument;
+
+/**
+ * Collects single key lookups made by many threads at once, and loads them with one find(_id $in) per type.
+ * A batch is sent once its window has passed since the first key joined it, or as soon as it's full, whichever comes
+ * first. Callers asking for the same key share its (immutable) document.
+ *
+ * Lookups never run in a session, so transactions must not go through this.
+ * See {@link DBService#enableGetBatching(long, int)}
+ * This is ThreadSafe.
+ *
+ * @author Evan
+ *
+ */
+class KeyBatcher {
+
+	private final MongoDatabase db;
+	private final long windowMicros;
+	private final int maxBatchSize;
+	private final Executor executor; //where timed batches are sent from
+
+	private final ScheduledExecutorService timer;
+
+	//the batch that's currently filling up, per type
+	private final Map<String, Batch> open = new HashMap<>();
+
+	//set by shutdown. A caller may still be holding on to us, so later lookups are sent on their own
+	private boolean closed = false;
+
+	private static class Batch {
+		private final Map<Key, CompletableFuture<RawBsonDocument>> waiting = new LinkedHashMap<>();
+	}
+
+	KeyBatcher(MongoDatabase db, long windowMicros, int maxBatchSize, Executor executor) {
+		this.db = db;
+		this.windowMicros = windowMicros;
+		this.maxBatchSize = maxBatchSize;
+		this.executor = executor;
+
+		ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread t = new Thread(r, "DBService-batcher");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.setRemoveOnCancelPolicy(true);
+
+		this.timer = timer;
+	}
+
+	/**
+	 * @param key
+	 * @return the document for this key, or null if it doesn't exist. Completes when its batch comes back.
+	 */
+	CompletableFuture<RawBsonDocument> load(Key key) {
+		CompletableFuture<RawBsonDocument> result;
+		Batch full = null;
+
+		synchronized(this) {
+			//the timer is gone, so this lookup goes out on its own
+			if(closed) {
+				full = new Batch();
+				result = new CompletableFuture<>();
+				full.waiting.put(key, result);
+			}
+			else {
+				Batch batch = open.get(key.getType());
+
+				if(batch == null) {
+					Batch created = new Batch();
+					batch = created;
+
+					//schedule first, so a batch is never left open without a timer
+					timer.schedule(() -> dispatch(key.getType(), created), windowMicros, TimeUnit.MICROSECONDS);
+					open.put(key.getType(), created);
+				}
+
+				result = batch.waiting.computeIfAbsent(key, k -> new CompletableFuture<>());
+
+				if(batch.waiting.size() >= maxBatchSize) {
+					open.remove(key.getType());
+					full = batch;
+				}
+			}
+		}
+
+		//this caller is about to wait anyway, so it may as well send it
+		if(full != null)
+			send(key.getType(), full);
+
+		return result;
+	}
+
+	/**
+	 * Hand a batch whose window has passed to the executor. If the executor won't take it, the timer sends it itself,
+	 * so its callers aren't left waiting forever.
+	 */
+	private void dispatch(String type, Batch batch) {
+		try {
+			executor.execute(() -> expire(type, batch));
+		}
+		catch(RejectedExecutionException e) {
+			expire(type, batch);
+		}
+	}
+
+	private void expire(String type, Batch batch) {
+		synchronized(this) {
+			//it filled up and was sent already
+			if(open.get(type) != batch)
+				return;
+
+			open.remove(type);
+		}
+
+		send(type, batch);
+	}
+
+	private void send(String type, Batch batch) {
+		try {
+			Map<String, RawBsonDocument> found = new HashMap<>();
+
+			for(RawBsonDocument doc : db.getCollection(type).find(BsonService.getFilterForIds(batch.waiting.keySet()), RawBsonDocument.class))
+				found.put(doc.getObjectId("_id").getValue().toHexString(), doc);
+
+			for(Entry<Key, CompletableFuture<RawBsonDocument>> entry : batch.waiting.entrySet())
+				entry.getValue().complete(found.get(entry.getKey().getId()));
+		}
+		catch(Throwable t) {
+			for(CompletableFuture<RawBsonDocument> f : batch.waiting.values())
+				f.completeExceptionally(t);
+		}
+	}
+
+	/**
+	 * Stop the timer. Anything still waiting is sent right away.
+	 */
+	void shutdown() {
+		Map<String, Batch> remaining;
+
+		synchronized(this) {
+			closed = true;
+			remaining = new HashMap<>(open);
+			open.clear();
+		}
+
+		timer.shutdownNow();
+
+		for(Entry<String, Batch> entry : remaining.entrySet())
+			send(entry.getKey(), entry.getValue());
+	}
+}
@@ -0,0 +1,16 @@
+package ca.elixa.db;
+
+/**
+ * How {@link DBService} generates keys for new entities.
+ */
+public enum KeyStrategy {
+    /**
+     * Use a fresh ObjectId. These are unique by construction, so this never touches the DB.
+     */
+    OBJECT_ID,
+
+    /**
+     * Use a fresh ObjectId, but check with the DB that nothing already has it. This costs a round trip per key.
+     */
+    VERIFIED
+}
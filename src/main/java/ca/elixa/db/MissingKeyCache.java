@@ -0,0 +1,213 @@
+package ca.elixa.db;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers keys we've recently confirmed don't exist, so looking them up again doesn't go to the DB.
+ * Stale references and speculative lookups tend to ask for the same missing keys over and over.
+ *
+ * Only types that have been configured with {@link #configure(String, long, int)} are tracked. Each type gets its own
+ * LRU region of keys, bounded by a time to live and a maximum count. {@link DBService} forgets a key as soon as it
+ * saves it, but a key inserted by another process is only noticed once its entry expires, so keep the ttl short.
+ *
+ * This is meant to be shared between every {@link DBService} in the process; see {@link DBService#setMissingKeyCache(MissingKeyCache)}
+ * This is ThreadSafe.
+ *
+ * @author Evan
+ *
+ */
+public class MissingKeyCache {
+
+	private final Map<String, Region> regions = new ConcurrentHashMap<>();
+	private final AtomicLong clock = new AtomicLong(); //shared by the invalidations of every region
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Start tracking missing keys of a type.
+	 * @param type - the entity type
+	 * @param ttlMillis - how long we trust that a key is missing. Must be positive.
+	 * @param maxKeys - the most missing keys we remember for this type
+	 * @return itself
+	 */
+	public MissingKeyCache configure(String type, long ttlMillis, int maxKeys){
+		//only our own writes clear an entry, so one that never expires could hide another process's insert forever
+		if(ttlMillis <= 0)
+			throw new IllegalArgumentException("Missing keys need a positive ttl, got " + ttlMillis);
+
+		regions.put(type, new Region(ttlMillis, maxKeys));
+		return this;
+	}
+
+	/**
+	 * Stop tracking a type, and forget everything we had for it.
+	 * @param type
+	 */
+	public void remove(String type){
+		regions.remove(type);
+	}
+
+	public boolean isCached(String type){
+		return regions.containsKey(type);
+	}
+
+	/**
+	 * @param key
+	 * @return true if we recently confirmed this key doesn't exist.
+	 */
+	protected boolean isMissing(Key key){
+		Region region = regions.get(key.getType());
+
+		if(region == null)
+			return false;
+
+		if(region.contains(key)) {
+			hits.incrementAndGet();
+			return true;
+		}
+
+		misses.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Take this before looking a key up, and hand it to markMissing. See {@link Invalidations}
+	 * @return
+	 */
+	protected long stamp(){
+		return clock.get();
+	}
+
+	/**
+	 * Remember that a key doesn't exist. Does nothing if the type isn't configured, or if the key was written since
+	 * the stamp was taken.
+	 * @param key
+	 * @param stamp - from {@link #stamp()}, taken before the lookup
+	 */
+	protected void markMissing(Key key, long stamp){
+		Region region = regions.get(key.getType());
+
+		if(region != null)
+			region.add(key, stamp);
+	}
+
+	/**
+	 * Forget that a key was missing. This should be called whenever it is written.
+	 * @param key
+	 */
+	public void invalidate(Key key){
+		Region region = regions.get(key.getType());
+
+		//a region configured after this still turns away lookups stamped before it
+		if(region == null)
+			return;
+
+		region.invalidate(key);
+	}
+
+	/**
+	 * Forget every missing key of a type.
+	 * @param type
+	 */
+	public void invalidateType(String type){
+		Region region = regions.get(type);
+
+		if(region != null)
+			region.invalidateAll();
+	}
+
+	public void clear(){
+		for(Region region : regions.values())
+			region.invalidateAll();
+	}
+
+	public long getHitCount(){
+		return hits.get();
+	}
+
+	public long getMissCount(){
+		return misses.get();
+	}
+
+	/**
+	 * @param type
+	 * @return how many missing keys we currently remember for a type.
+	 */
+	public int getSize(String type){
+		Region region = regions.get(type);
+
+		if(region == null)
+			return 0;
+
+		return region.size();
+	}
+
+	/**
+	 * The missing keys of a single type, with when we stop trusting each one. Access ordered, so iterating starts from
+	 * the least recently used key.
+	 */
+	private class Region {
+		private final long ttl;
+		private final int maxKeys;
+
+		private final LinkedHashMap<Key, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+		private final Invalidations invalidations = new Invalidations(clock);
+
+		private Region(long ttl, int maxKeys){
+			this.ttl = ttl;
+			this.maxKeys = maxKeys;
+		}
+
+		private synchronized boolean contains(Key key){
+			Long expiresAt = entries.get(key);
+
+			if(expiresAt == null)
+				return false;
+
+			if(expiresAt < System.currentTimeMillis()) {
+				entries.remove(key);
+				return false;
+			}
+
+			return true;
+		}
+
+		private synchronized void add(Key key, long stamp){
+			//it was written while we were looking for it
+			if(!invalidations.isCurrent(key, stamp))
+				return;
+
+			entries.put(key, System.currentTimeMillis() + ttl);
+
+			Iterator<Key> it = entries.keySet().iterator();
+
+			while(entries.size() > maxKeys && it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+
+		/**
+		 * Recorded before the entry is dropped, so a markMissing that hasn't reached the region yet is turned away.
+		 */
+		private synchronized void invalidate(Key key){
+			invalidations.invalidate(key);
+			entries.remove(key);
+		}
+
+		private synchronized void invalidateAll(){
+			invalidations.invalidateAll();
+			entries.clear();
+		}
+
+		private synchronized int size(){
+			return entries.size();
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package ca.elixa.db;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
+
+/**
+ * A {@link Query} compiled once into its filter, update, projection and sort, with {@link QueryParam}s standing in
+ * for the values that change between runs. Build one at startup for a hot query and {@link #bind()} it for each run;
+ * none of the Bson is rebuilt or re-parsed.
+ *
+ * <pre>
+ * PreparedQuery byOwner = new Query("Item").addFilter("owner", Query.param("owner")).prepare();
+ * List&lt;Item&gt; items = db.runEntityQuery(byOwner.bind().set("owner", ownerKey));
+ * </pre>
+ *
+ * Later changes to the source query don't affect this. This is immutable, and so ThreadSafe.
+ *
+ * @author Evan
+ *
+ */
+public final class PreparedQuery {
+
+	private final String type;
+
+	private final Map<String, Integer> params; //name -> index into a BoundQuery's values
+
+	private final BsonTemplate filter;
+	private final BsonTemplate update; //This can be null
+
+	private final Bson projection; //This can be null
+	private final Set<String> projections; //This can be null
+	private final Bson sort; //This can be null
+
+	private final int skip;
+	private final int limit;
+	private final int batchSize;
+
+	private final String[] includes;
+
+	protected PreparedQuery(Query q) {
+		if(q.startAfter != null)
+			throw new IllegalStateException("A query with a keyset position can't be prepared");
+
+		type = q.getType();
+
+		Map<String, Integer> names = new HashMap<>();
+
+		filter = BsonTemplate.compile(BsonService.generateCompositeFilter(q.filters), names);
+		update = q.updates.isEmpty() ? null : BsonTemplate.compile(BsonService.generateUpdates(q.updates), names);
+
+		params = Collections.unmodifiableMap(names);
+
+		Bson p = BsonService.generateProjections(q.projections);
+		projection = p == null ? null : p.toBsonDocument();
+		projections = q.projections.isEmpty() ? null : Collections.unmodifiableSet(new LinkedHashSet<>(q.projections));
+
+		Bson s = BsonService.generateSort(q.sorts);
+		sort = s == null ? null : s.toBsonDocument();
+
+		skip = q.getSkip();
+		limit = q.getLimit();
+		batchSize = q.getBatchSize();
+
+		includes = q.includes.toArray(new String[0]);
+	}
+
+	/**
+	 * @return a fresh set of values for this query. Set every parameter before running it.
+	 */
+	public BoundQuery bind() {
+		return new BoundQuery(this);
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	/**
+	 * @return the names of every parameter in this query
+	 */
+	public Set<String> getParams() {
+		return params.keySet();
+	}
+
+	protected int indexOf(String param) {
+		Integer index = params.get(param);
+
+		if(index == null)
+			throw new IllegalArgumentException("This query has no parameter " + param);
+
+		return index;
+	}
+
+	protected int paramCount() {
+		return params.size();
+	}
+
+	protected Bson filter(Object[] values) {
+		return filter.bind(values);
+	}
+
+	/**
+	 * @param values
+	 * @return the bound update, or null if the query had none
+	 */
+	protected Bson update(Object[] values) {
+		return update == null ? null : update.bind(values);
+	}
+
+	protected Bson getProjection() {
+		return projection;
+	}
+
+	protected Set<String> getProjections() {
+		return projections;
+	}
+
+	protected Bson getSort() {
+		return sort;
+	}
+
+	public int getSkip() {
+		return skip;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	protected String[] getIncludes() {
+		return includes;
+	}
+}
@@ -0,0 +1,70 @@
+package ca.elixa.db;
+
+/**
+ * The outcome of saving a single entity through one of the bulk put paths.
+ * See {@link DBService#bulkPut(Iterable, boolean)}
+ *
+ * @author Evan
+ *
+ */
+public class PutResult {
+
+	public enum Status {
+		INSERTED,
+		/** the whole document was replaced */
+		REPLACED,
+		/** only the changed fields were sent */
+		UPDATED,
+		/** nothing had changed, so nothing was sent */
+		UNCHANGED,
+		/** the entity was never sent, eg. because it was projected */
+		SKIPPED,
+		/** the server rejected this entity */
+		FAILED,
+		/** an ordered batch stopped at an earlier failure, so this entity was never attempted */
+		NOT_ATTEMPTED
+	}
+
+	private final Key key;
+	private final Status status;
+	private final String error;
+
+	protected PutResult(Key key, Status status) {
+		this(key, status, null);
+	}
+
+	protected PutResult(Key key, Status status, String error) {
+		this.key = key;
+		this.status = status;
+		this.error = error;
+	}
+
+	public Key getKey() {
+		return key;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return true if the entity made it to the DB.
+	 */
+	public boolean succeeded() {
+		return status == Status.INSERTED || status == Status.REPLACED || status == Status.UPDATED || status == Status.UNCHANGED;
+	}
+
+	/**
+	 * @return the error reported by the server. This is null unless the status is FAILED.
+	 */
+	public String getError() {
+		return error;
+	}
+
+	@Override
+	public String toString(){
+		if(error == null)
+			return key + ": " + status;
+		return key + ": " + status + " (" + error + ")";
+	}
+}
@@ -4,6 +4,7 @@ import ca.elixa.iris.Iris;
 
 import java.nio.file.DirectoryStream;
 import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * Helper methods for querying entities.
@@ -71,6 +72,66 @@ public class Querier {
 	}
 	
 
+	/**
+	 * Fetch entities matching all of these filters, which can include IN, EXISTS, ranges and OR groups.
+	 * See {@link QueryFilter}
+	 */
+	public <T extends Entity> List<T> fetchEntities(String type, QueryFilter... filters){
+
+		addFilters(type, filters);
+
+		List<T> result = db.runEntityQuery(query);
+		query = null;
+
+		return result;
+	}
+
+	/**
+	 * Same as fetchEntities, but the entities are built lazily as the stream is read. Close the stream when you're done.
+	 * See {@link DBService#streamEntityQuery(Query)}
+	 */
+	public <T extends Entity> Stream<T> streamEntities(String type, String field, Object value){
+		return streamEntities(type, field, FilterOperator.EQUAL, value);
+	}
+
+	public <T extends Entity> Stream<T> streamEntities(String type, String field, FilterOperator op, Object value){
+
+		addFilter(type, field, op, value);
+
+		Stream<T> result = db.streamEntityQuery(query);
+		query = null;
+
+		return result;
+	}
+
+	/**
+	 * Same as fetchEntities, but the entities are built lazily as the iterator is read. Close the iterator when you're done.
+	 * See {@link DBService#iterateEntityQuery(Query)}
+	 */
+	public <T extends Entity> EntityIterator<T> iterateEntities(String type, String field, Object value){
+		return iterateEntities(type, field, FilterOperator.EQUAL, value);
+	}
+
+	public <T extends Entity> EntityIterator<T> iterateEntities(String type, String field, FilterOperator op, Object value){
+
+		addFilter(type, field, op, value);
+
+		EntityIterator<T> result = db.iterateEntityQuery(query);
+		query = null;
+
+		return result;
+	}
+
+	public Long countEntities(String type, QueryFilter... filters){
+
+		addFilters(type, filters);
+
+		Long result = db.runCount(query);
+		query = null;
+
+		return result;
+	}
+
 	public Long countEntities(String type, String field, Object value){
 		return countEntities(type, field, FilterOperator.EQUAL, value);
 	}
@@ -119,6 +180,14 @@ public class Querier {
 		query.addFilter(field, op, value);
 	}
 	
+	private void addFilters(String type, QueryFilter... filters){
+		if(query == null)
+			query = new Query(type);
+
+		for(QueryFilter filter : filters)
+			query.addFilter(filter);
+	}
+	
 	private Query getQuery(String type) {
 		if(query == null)
 			return new Query(type);
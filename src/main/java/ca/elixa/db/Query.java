@@ -1,21 +1,35 @@
 package ca.elixa.db;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.bson.types.ObjectId;
+
 /**
  * This stores information about a query before it is executed. A logical building block in efficient queries
  * @author Evan
  *
  */
 public class Query {
-	protected Map<String, Pair<FilterOperator, Object>> filters = new HashMap<>();
-	protected Map<String, Object> updates = new HashMap<>();
+	protected List<QueryFilter> filters = new ArrayList<>(); //ANDed together
+	protected Map<String, Pair<UpdateOperator, Object>> updates = new HashMap<>();
 	protected Set<String> projections = new HashSet<>();
+	protected LinkedHashMap<String, Boolean> sorts = new LinkedHashMap<>(); //field -> ascending
+	protected LinkedHashMap<String, Object> startAfter = null; //This can be null
+	protected Set<String> includes = new LinkedHashSet<>(); //reference paths loaded along with the results
 	
 	private final String type;
+
+	private int batchSize = 0;
+	private int limit = 0;
+	private int skip = 0;
 	
 	
 	public Query(String type) {
@@ -33,8 +47,20 @@ public class Query {
 	 * @return itself
 	 */
 	public Query addUpdate(String propertyName, Object newValue) {
+		return addUpdate(propertyName, UpdateOperator.SET, newValue);
+	}
+
+	/**
+	 * Change a field atomically on the server, eg. bump a counter or append to a list, with no read first.
+	 * A field takes one update; adding another replaces it.
+	 * @param propertyName
+	 * @param operator
+	 * @param value - the operand. See {@link UpdateOperator}
+	 * @return itself
+	 */
+	public Query addUpdate(String propertyName, UpdateOperator operator, Object value) {
 		
-		updates.put(propertyName, newValue);
+		updates.put(propertyName, new Pair<>(operator, value));
 		
 		return this;
 	}
@@ -72,28 +98,229 @@ public class Query {
 		return projections;
 	}
 
+	/**
+	 * Load the entities referenced by these fields along with the results, with one query per referenced type.
+	 * A path can go through embedded documents and lists, eg. "inventory.items". See {@link DBService#prefetch(Iterable, String...)}
+	 * This only applies to {@link DBService#runEntityQuery(Query)}; iterating a query would have to hold results back.
+	 * @param paths
+	 * @return itself
+	 */
+	public Query include(String... paths) {
+		includes.addAll(Arrays.asList(paths));
+
+		return this;
+	}
+
+	public Query removeInclude(String path) {
+		includes.remove(path);
+
+		return this;
+	}
+
+	public Set<String> getIncludes() {
+		return includes;
+	}
+
+	/**
+	 * How many documents the server sends back per round trip when this query is iterated or streamed.
+	 * @param batchSize - 0 leaves it up to the driver
+	 * @return itself
+	 */
+	public Query setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+
+		return this;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Cap the number of entities this query returns.
+	 * @param limit - 0 means no limit
+	 * @return itself
+	 */
+	public Query setLimit(int limit) {
+		this.limit = limit;
+
+		return this;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Skip over the first few matches. The server still walks every skipped document, so for deep pages
+	 * prefer {@link #startAfter(Entity)}.
+	 * @param skip
+	 * @return itself
+	 */
+	public Query setSkip(int skip) {
+		this.skip = skip;
+
+		return this;
+	}
+
+	public int getSkip() {
+		return skip;
+	}
+
+	/**
+	 * Sort the results by a field. Call this once per field, most significant first.
+	 * Ties are always broken by _id, so the order is stable between pages.
+	 * @param propertyName
+	 * @param ascending
+	 * @return itself
+	 */
+	public Query addSort(String propertyName, boolean ascending) {
+		sorts.put(propertyName, ascending);
+
+		return this;
+	}
+
+	public Query removeSort(String propertyName) {
+		sorts.remove(propertyName);
+
+		return this;
+	}
+
+	/**
+	 * Keyset pagination: only return entities that come after the given one in this query's sort order.
+	 * Pass the last entity of the previous page. It must have a value for every sort field.
+	 * Add every sort before calling this.
+	 * @param last - the last entity of the previous page
+	 * @return itself
+	 */
+	public Query startAfter(Entity last) {
+		LinkedHashMap<String, Object> values = new LinkedHashMap<>();
+
+		for(String field : sorts.keySet())
+			values.put(field, last.getDocument().getEmbedded(Arrays.asList(field.split("\\.")), Object.class));
+
+		values.put("_id", new ObjectId(last.getId()));
+
+		startAfter = values;
+
+		return this;
+	}
+
+	/**
+	 * Keyset pagination: only return entities that come after the given position in this query's sort order.
+	 * Add every sort before calling this.
+	 * @param key - the key of the last entity of the previous page
+	 * @param sortValues - that entity's value for each sort field, in the order the sorts were added
+	 * @return itself
+	 */
+	public Query startAfter(Key key, Object... sortValues) {
+		if(sortValues.length != sorts.size())
+			throw new IllegalArgumentException("Expected " + sorts.size() + " sort values but got " + sortValues.length);
+
+		LinkedHashMap<String, Object> values = new LinkedHashMap<>();
+
+		int i = 0;
+		for(String field : sorts.keySet())
+			values.put(field, sortValues[i++]);
+
+		values.put("_id", new ObjectId(key.getId()));
+
+		startAfter = values;
+
+		return this;
+	}
+
+	/**
+	 * Go back to the first page.
+	 * @return itself
+	 */
+	public Query clearStartAfter() {
+		startAfter = null;
+
+		return this;
+	}
+
 	public Query addFilter(String propertyName, Object value){
 		return addFilter(propertyName, FilterOperator.EQUAL, value);
 	}
 	
 	/**
-	 * 
+	 * Add a predicate on a field. A field can have several, eg. GREATER_EQUAL and LESS for a range,
+	 * but adding one with the same operator as an existing one replaces it.
 	 * @param propertyName
 	 * @param operator
-	 * @param value
+	 * @param value - a list or array for IN and NOT_IN, a boolean for EXISTS
 	 * @return itself
 	 */
 	public Query addFilter(String propertyName, FilterOperator operator, Object value) {
-		Pair<FilterOperator, Object> duple = new Pair<>(operator, value);
-		
-		filters.put(propertyName, duple);
+		QueryFilter filter = QueryFilter.of(propertyName, operator, value);
+
+		for(int i = 0; i < filters.size(); i++) {
+			QueryFilter existing = filters.get(i);
+
+			if(!existing.isGroup() && existing.getOperator() == operator && existing.getField().equals(propertyName)) {
+				filters.set(i, filter);
+				return this;
+			}
+		}
+
+		filters.add(filter);
 		
 		return this;
 	}
-	
+
+	/**
+	 * Add a filter, usually an OR or AND group. Nothing is replaced.
+	 * @param filter
+	 * @return itself
+	 */
+	public Query addFilter(QueryFilter filter) {
+		filters.add(filter);
+
+		return this;
+	}
+
+	/**
+	 * Match entities that pass any of these filters, on top of the query's other filters.
+	 * @param branches
+	 * @return itself
+	 */
+	public Query addOr(QueryFilter... branches) {
+		return addFilter(QueryFilter.or(branches));
+	}
+
+	/**
+	 * Remove every predicate on this field. Groups are left alone.
+	 * @param propertyName
+	 * @return itself
+	 */
 	public Query removeFilter(String propertyName) {
-		filters.remove(propertyName);
+		filters.removeIf(filter -> !filter.isGroup() && filter.getField().equals(propertyName));
 		
 		return this;
 	}
+
+	public List<QueryFilter> getFilters() {
+		return filters;
+	}
+
+	/**
+	 * A placeholder for a value that's given when the query runs. Use it as a filter or update value, then
+	 * {@link #prepare()} the query. See {@link BoundQuery#set(String, Object)}
+	 * @param name - a name for the value, unique within the query
+	 * @return the placeholder
+	 */
+	public static QueryParam param(String name) {
+		return new QueryParam(name);
+	}
+
+	/**
+	 * Compile this query into a reusable plan. Its filters, updates, projections and sorts are built into Bson once,
+	 * and only the values of its {@link #param(String)}s are given on each run.
+	 * A query with a keyset position can't be prepared.
+	 * @return the prepared query. Later changes to this query don't affect it.
+	 */
+	public PreparedQuery prepare() {
+		return new PreparedQuery(this);
+	}
 }
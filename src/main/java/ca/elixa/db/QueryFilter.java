@@ -0,0 +1,113 @@
+package ca.elixa.db;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One predicate of a {@link Query}, or a group of them joined by OR or AND. Groups can be nested.
+ *
+ * <pre>
+ * //level 10 and up, in either guild
+ * query.addFilter("level", FilterOperator.GREATER_EQUAL, 10)
+ *      .addOr(QueryFilter.of("guild", a), QueryFilter.of("guild", b));
+ * </pre>
+ *
+ * This is immutable, and so ThreadSafe.
+ *
+ * @author Evan
+ *
+ */
+public final class QueryFilter {
+
+	private final String field; //null for groups
+	private final FilterOperator op; //null for groups
+	private final Object value;
+
+	private final List<QueryFilter> branches; //null for predicates
+	private final boolean or;
+
+	private QueryFilter(String field, FilterOperator op, Object value) {
+		this.field = field;
+		this.op = op;
+		//let IN and NOT_IN take arrays as well as lists
+		this.value = value instanceof Object[] array ? Arrays.asList(array) : value;
+		this.branches = null;
+		this.or = false;
+	}
+
+	private QueryFilter(boolean or, QueryFilter... branches) {
+		if(branches.length == 0)
+			throw new IllegalArgumentException("A filter group needs at least one branch");
+
+		this.field = null;
+		this.op = null;
+		this.value = null;
+		this.branches = Collections.unmodifiableList(Arrays.asList(branches.clone()));
+		this.or = or;
+	}
+
+	public static QueryFilter of(String field, Object value) {
+		return of(field, FilterOperator.EQUAL, value);
+	}
+
+	/**
+	 * @param field
+	 * @param op
+	 * @param value - a list or array for IN and NOT_IN, a boolean for EXISTS
+	 * @return
+	 */
+	public static QueryFilter of(String field, FilterOperator op, Object value) {
+		return new QueryFilter(field, op, value);
+	}
+
+	/**
+	 * @param branches
+	 * @return a filter that matches when any of the branches do
+	 */
+	public static QueryFilter or(QueryFilter... branches) {
+		return new QueryFilter(true, branches);
+	}
+
+	/**
+	 * Only needed inside an OR; the top level filters of a query are always ANDed.
+	 * @param branches
+	 * @return a filter that matches when all of the branches do
+	 */
+	public static QueryFilter and(QueryFilter... branches) {
+		return new QueryFilter(false, branches);
+	}
+
+	public boolean isGroup() {
+		return branches != null;
+	}
+
+	public boolean isOr() {
+		return or;
+	}
+
+	/**
+	 * @return the field, or null if this is a group
+	 */
+	public String getField() {
+		return field;
+	}
+
+	/**
+	 * @return the operator, or null if this is a group
+	 */
+	public FilterOperator getOperator() {
+		return op;
+	}
+
+	public Object getValue() {
+		return value;
+	}
+
+	/**
+	 * @return the branches, or null if this isn't a group
+	 */
+	public List<QueryFilter> getBranches() {
+		return branches;
+	}
+}
@@ -0,0 +1,25 @@
+package ca.elixa.db;
+
+/**
+ * A named placeholder for a value in a {@link PreparedQuery}. Use it anywhere a filter or update value would go,
+ * then give it a value with {@link BoundQuery#set(String, Object)}. See {@link Query#param(String)}
+ *
+ * @author Evan
+ *
+ */
+public final class QueryParam {
+	private final String name;
+
+	protected QueryParam(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String toString() {
+		return ":" + name;
+	}
+}
@@ -0,0 +1,287 @@
+package ca.elixa.db;
+
+import java.util.ArrayDeque;
+import java.util.function.Function;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.streams.ReadStream;
+import org.bson.Document;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * A Vert.x ReadStream fed straight from a query's cursor. Documents are only requested from the driver when the
+ * consumer has demand for them, and at most a small prefetch is ever buffered, so memory stays flat no matter how many
+ * documents the query matches. This means it can be piped straight into a WriteStream (an HttpServerResponse, for
+ * instance) and the first item goes out long before the query finishes.
+ *
+ * The query isn't sent until a handler is set. Setting a null handler cancels it.
+ * Handlers are called on the Vert.x context the stream was created on, if there was one.
+ * See {@link AsyncDBService#streamEntityQuery(Query)}
+ *
+ * @author Evan
+ *
+ * @param <T> - what each document is turned into
+ */
+public class QueryReadStream<T> implements ReadStream<T> {
+
+	private final Publisher<Document> publisher;
+	private final Function<Document, T> mapper;
+	private final Context context; //This can be null
+	private final int prefetch;
+
+	private final ArrayDeque<Document> queue = new ArrayDeque<>();
+
+	private Subscription subscription = null;
+	private boolean subscribed = false;
+	private boolean completed = false; //the driver has nothing left to send
+	private boolean ended = false; //we've told the consumer we're done, one way or another
+
+	private long demand = Long.MAX_VALUE; //streams start out flowing
+	private long requested = 0; //how many documents we've asked the driver for that haven't arrived yet
+
+	private boolean draining = false;
+	private boolean drainAgain = false;
+
+	private Handler<T> handler;
+	private Handler<Void> endHandler;
+	private Handler<Throwable> exceptionHandler;
+
+	/**
+	 * @param publisher - the find we're reading
+	 * @param mapper - turns each document into whatever we emit
+	 * @param context - where the handlers are called. This can be null, in which case they run on the driver's threads.
+	 * @param prefetch - the most documents we ever hold ahead of the consumer
+	 */
+	protected QueryReadStream(Publisher<Document> publisher, Function<Document, T> mapper, Context context, int prefetch) {
+		this.publisher = publisher;
+		this.mapper = mapper;
+		this.context = context;
+		this.prefetch = Math.max(1, prefetch);
+	}
+
+	@Override
+	public synchronized QueryReadStream<T> exceptionHandler(Handler<Throwable> handler) {
+		exceptionHandler = handler;
+		return this;
+	}
+
+	@Override
+	public QueryReadStream<T> handler(Handler<T> handler) {
+		boolean subscribe = false;
+
+		synchronized(this) {
+			this.handler = handler;
+
+			if(handler == null) {
+				ended = true;
+				queue.clear();
+
+				if(subscription != null)
+					subscription.cancel();
+			}
+			else if(!subscribed) {
+				subscribed = true;
+				subscribe = true;
+			}
+		}
+
+		if(subscribe)
+			publisher.subscribe(new CursorSubscriber());
+
+		return this;
+	}
+
+	@Override
+	public synchronized QueryReadStream<T> pause() {
+		demand = 0;
+		return this;
+	}
+
+	@Override
+	public QueryReadStream<T> resume() {
+		return fetch(Long.MAX_VALUE);
+	}
+
+	@Override
+	public QueryReadStream<T> fetch(long amount) {
+		if(amount < 0)
+			throw new IllegalArgumentException("Fetch amount must be positive, got " + amount);
+
+		synchronized(this) {
+			demand += amount;
+
+			//overflow, which means we're flowing
+			if(demand < 0)
+				demand = Long.MAX_VALUE;
+		}
+
+		schedule();
+
+		return this;
+	}
+
+	@Override
+	public synchronized QueryReadStream<T> endHandler(Handler<Void> endHandler) {
+		this.endHandler = endHandler;
+		return this;
+	}
+
+	/**
+	 * Run a drain on our context.
+	 */
+	private void schedule() {
+		if(context == null)
+			drain();
+		else
+			context.runOnContext(v -> drain());
+	}
+
+	/**
+	 * Hand queued documents to the consumer while it has demand, then top the driver back up.
+	 */
+	private void drain() {
+		synchronized(this) {
+			//a handler we called fetched more; let the outer drain pick it up
+			if(draining) {
+				drainAgain = true;
+				return;
+			}
+			draining = true;
+		}
+
+		try {
+			do {
+				synchronized(this) {
+					drainAgain = false;
+				}
+
+				while(true) {
+					Document doc;
+					Handler<T> current;
+
+					synchronized(this) {
+						if(ended || demand == 0 || queue.isEmpty())
+							break;
+
+						doc = queue.poll();
+						current = handler;
+
+						if(demand != Long.MAX_VALUE)
+							demand--;
+					}
+
+					try {
+						current.handle(mapper.apply(doc));
+					}
+					catch(Exception e) {
+						fail(e);
+						return;
+					}
+				}
+
+				Handler<Void> end = null;
+
+				synchronized(this) {
+					if(ended)
+						return;
+
+					if(completed && queue.isEmpty()) {
+						ended = true;
+						end = endHandler;
+					}
+					else if(subscription != null && !completed) {
+						long wanted = Math.min(demand, prefetch) - queue.size() - requested;
+
+						if(wanted > 0) {
+							requested += wanted;
+							subscription.request(wanted);
+						}
+					}
+				}
+
+				if(end != null)
+					end.handle(null);
+			}
+			while(drainAgainSet());
+		}
+		finally {
+			synchronized(this) {
+				draining = false;
+			}
+		}
+	}
+
+	private synchronized boolean drainAgainSet() {
+		return drainAgain;
+	}
+
+	private void fail(Throwable t) {
+		Handler<Throwable> onError;
+
+		synchronized(this) {
+			if(ended)
+				return;
+
+			ended = true;
+			queue.clear();
+			onError = exceptionHandler;
+
+			if(subscription != null)
+				subscription.cancel();
+		}
+
+		if(onError != null)
+			onError.handle(t);
+	}
+
+	/**
+	 * Receives documents from the driver. Everything it does is handed back to our context.
+	 */
+	private class CursorSubscriber implements Subscriber<Document> {
+
+		@Override
+		public void onSubscribe(Subscription s) {
+			boolean cancel;
+
+			synchronized(QueryReadStream.this) {
+				subscription = s;
+				cancel = ended;
+			}
+
+			if(cancel)
+				s.cancel();
+			else
+				schedule();
+		}
+
+		@Override
+		public void onNext(Document doc) {
+			synchronized(QueryReadStream.this) {
+				requested--;
+				queue.add(doc);
+			}
+
+			schedule();
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			if(context == null)
+				fail(t);
+			else
+				context.runOnContext(v -> fail(t));
+		}
+
+		@Override
+		public void onComplete() {
+			synchronized(QueryReadStream.this) {
+				completed = true;
+			}
+
+			schedule();
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package ca.elixa.db;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical reads that are in flight at the same time. The first caller for a key runs the read, and
+ * everyone who asks for the same key before it finishes waits for that result instead of running their own.
+ * Once the read finishes, the next caller starts a new one; nothing is cached.
+ *
+ * Every caller gets the same result object, so it should be immutable (eg. RawBsonDocument).
+ * This is ThreadSafe.
+ *
+ * @author Evan
+ *
+ * @param <K> - what identifies a read
+ * @param <V> - what the read returns
+ */
+public class SingleFlight<K, V> {
+
+	private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+	/**
+	 * Run a read, or join the identical one that's already running.
+	 * @param key - identifies the read
+	 * @param read - runs on the calling thread, if nobody else is already running it
+	 * @return the read's result
+	 */
+	public V run(K key, Supplier<V> read) {
+		CompletableFuture<V> mine = new CompletableFuture<>();
+		CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+
+		if(running != null) {
+			try{
+				return running.join();
+			}
+			catch(CompletionException e){
+				if(e.getCause() instanceof RuntimeException cause)
+					throw cause;
+				throw e;
+			}
+		}
+
+		try{
+			V result = read.get();
+			mine.complete(result);
+			return result;
+		}
+		catch(RuntimeException | Error e){
+			mine.completeExceptionally(e);
+			throw e;
+		}
+		finally{
+			inFlight.remove(key, mine);
+		}
+	}
+
+	/**
+	 * @return how many distinct reads are running right now.
+	 */
+	public int size() {
+		return inFlight.size();
+	}
+}
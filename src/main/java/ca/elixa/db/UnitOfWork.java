@@ -0,0 +1,93 @@
+package ca.elixa.db;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records the writes made during a transaction instead of sending them right away.
+ * Saving the same entity several times only records it once, and deleting it drops any pending save.
+ * Everything is flushed by {@link DBService} just before the transaction commits, as one ordered bulkWrite per collection.
+ *
+ * See {@link DBService#doUnitOfWork(Runnable)}
+ * This is not ThreadSafe; each one belongs to the thread running its transaction.
+ *
+ * @author Evan
+ *
+ */
+public class UnitOfWork {
+
+	private final Map<Key, Entity> saves = new LinkedHashMap<>();
+	private final Set<Key> deletes = new LinkedHashSet<>();
+
+	protected UnitOfWork(){}
+
+	/**
+	 * Record that an entity should be saved. If it was pending deletion, it isn't anymore.
+	 * @param ent
+	 */
+	protected void registerSave(Entity ent){
+		deletes.remove(ent.getKey());
+		saves.put(ent.getKey(), ent);
+	}
+
+	/**
+	 * Record that a key should be deleted. Any pending save for it is dropped.
+	 * A brand new entity that was never sent simply disappears.
+	 * @param key
+	 */
+	protected void registerDelete(Key key){
+		Entity pending = saves.remove(key);
+
+		if(pending != null && pending.isNew())
+			return;
+
+		deletes.add(key);
+	}
+
+	/**
+	 * @param key
+	 * @return the entity waiting to be saved under this key, or null.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Entity> T getPendingSave(Key key){
+		return (T) saves.get(key);
+	}
+
+	/**
+	 * @param key
+	 * @return true if this key is waiting to be deleted.
+	 */
+	public boolean isPendingDelete(Key key){
+		return deletes.contains(key);
+	}
+
+	public boolean isEmpty(){
+		return saves.isEmpty() && deletes.isEmpty();
+	}
+
+	/**
+	 * @return the entities waiting to be saved, in the order they were first saved.
+	 */
+	public List<Entity> getPendingSaves(){
+		return new ArrayList<>(saves.values());
+	}
+
+	/**
+	 * @return the keys waiting to be deleted, in the order they were deleted.
+	 */
+	public List<Key> getPendingDeletes(){
+		return new ArrayList<>(deletes);
+	}
+
+	/**
+	 * Forget everything without sending it.
+	 */
+	public void clear(){
+		saves.clear();
+		deletes.clear();
+	}
+}
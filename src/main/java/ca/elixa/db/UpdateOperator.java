@@ -0,0 +1,15 @@
+package ca.elixa.db;
+
+/**
+ * How an update changes a field. Everything but SET is applied by the server, so it needs no read and can't
+ * lose a concurrent write.
+ */
+public enum UpdateOperator {
+    SET,
+    INC, //the value is a number to add, negative to subtract
+    PUSH, //append the value to a list
+    ADD_TO_SET, //append the value to a list, unless it's already there
+    PULL, //remove every copy of the value from a list
+    MIN, //keep the smaller of the current value and this one
+    MAX //keep the larger of the current value and this one
+}
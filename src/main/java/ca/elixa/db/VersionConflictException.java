@@ -0,0 +1,34 @@
+package ca.elixa.db;
+
+/**
+ * Thrown when a versioned entity is saved, but the copy in the DB has been changed (or deleted) since it was loaded.
+ * Nothing was written. Load the entity again and redo the change, or let {@link DBService#retryOnConflict(int, Runnable)}
+ * do it for you.
+ *
+ * @author Evan
+ *
+ */
+public class VersionConflictException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Key key;
+	private final long expectedVersion;
+
+	protected VersionConflictException(Key key, long expectedVersion) {
+		super("Entity " + key + " is no longer at version " + expectedVersion + "; it was changed or deleted since it was loaded");
+		this.key = key;
+		this.expectedVersion = expectedVersion;
+	}
+
+	public Key getKey() {
+		return key;
+	}
+
+	/**
+	 * @return the version the entity had when it was loaded
+	 */
+	public long getExpectedVersion() {
+		return expectedVersion;
+	}
+}